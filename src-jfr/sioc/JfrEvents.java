@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2010, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sioc;
+
+import jdk.jfr.*;
+
+/* Flight recorder events for SIOC.
+ * SIOC finds begin and end reflectively, so it still runs
+ * on a JVM without jdk.jfr (or without this class).
+ * It lives outside src so the default build stays on JDK 7;
+ * "ant jfr" compiles it.
+ * Event kinds are the SIOC.EVENT_* numbers.
+ */
+final class JfrEvents {
+    private JfrEvents() { }
+
+    static Object begin(int kind) {
+        SIOCEvent ev;
+        switch (kind) {
+        case SIOC.EVENT_LOAD:          ev = new LoadEvent(); break;
+        case SIOC.EVENT_PARSE:         ev = new ParseEvent(); break;
+        case SIOC.EVENT_COMPILE:       ev = new CompileEvent(); break;
+        case SIOC.EVENT_META_LOOKUP:   ev = new MetaLookupEvent(); break;
+        case SIOC.EVENT_DISPATCH_MISS: ev = new DispatchMissEvent(); break;
+        case SIOC.EVENT_CLASS_MISS:    ev = new ClassMissEvent(); break;
+        default:  return null;
+        }
+        if (!ev.isEnabled())  return null;
+        ev.begin();
+        return ev;
+    }
+
+    static void end(Object ev, String detail) {
+        SIOCEvent sev = (SIOCEvent) ev;
+        sev.end();
+        if (sev.shouldCommit()) {
+            sev.detail = detail;
+            sev.commit();
+        }
+    }
+
+    @Category("SIOC")
+    @StackTrace(false)
+    static abstract class SIOCEvent extends Event {
+        @Label("Detail")
+        String detail;
+    }
+
+    @Name("sioc.Load")
+    @Label("Load")
+    @Description("F_load of a file, resource, URL or stream")
+    static final class LoadEvent extends SIOCEvent { }
+
+    @Name("sioc.Parse")
+    @Label("Parse")
+    @Description("Reading one top-level form")
+    static final class ParseEvent extends SIOCEvent { }
+
+    @Name("sioc.Compile")
+    @Label("Compile")
+    @Description("F_compile of a form")
+    static final class CompileEvent extends SIOCEvent { }
+
+    @Name("sioc.MetaLookup")
+    @Label("Member Lookup")
+    @Description("Reflective search for the handles of one class and member name")
+    static final class MetaLookupEvent extends SIOCEvent { }
+
+    @Name("sioc.DispatchMiss")
+    @Label("Dispatch Miss")
+    @Description("Overload dispatch through the slow chooseMethod path")
+    @StackTrace(true)
+    static final class DispatchMissEvent extends SIOCEvent { }
+
+    @Name("sioc.ClassMiss")
+    @Label("Class Lookup Miss")
+    @Description("Class.forName of a name which is not a class")
+    static final class ClassMissEvent extends SIOCEvent { }
+}
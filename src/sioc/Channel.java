@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2010, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package sioc;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* A channel, as made by SIOC's make-channel:  a bounded queue which
+ * can be closed.  One lock guards the items and the closed flag, so a
+ * put either lands before the close or fails.  Closing never blocks;
+ * it wakes every blocked reader and writer.  Readers drain what was
+ * queued before the close, then get the end value they pass to take.
+ */
+final class Channel {
+    private final ArrayDeque<Object> items;
+    private final int capacity;
+    private boolean closed;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private static final Object NULL_ITEM = new Object();  // ArrayDeque holds no nulls
+
+    Channel(int capacity) {
+        if (capacity < 1)  throw new IllegalArgumentException("capacity: "+capacity);
+        this.items = new ArrayDeque<>(capacity);
+        this.capacity = capacity;
+    }
+
+    /** Wait for room and add x; return false if the channel is or gets closed. */
+    boolean put(Object x) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!closed && items.size() == capacity)
+                notFull.await();
+            if (closed)  return false;
+            items.add(x == null ? NULL_ITEM : x);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Wait for an item; once closed and drained, return atEnd. */
+    Object take(Object atEnd) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!closed && items.isEmpty())
+                notEmpty.await();
+            if (items.isEmpty())  return atEnd;
+            Object x = items.remove();
+            notFull.signal();
+            return (x == NULL_ITEM ? null : x);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
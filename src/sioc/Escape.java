@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2010, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sioc;
+
+/* The non-local exit behind call/ec and the REPL's quit.
+ * One is made per call/ec and thrown by its escape procedure, carrying
+ * the value to return.  It records no stack trace and has no suppressed
+ * list, so an exit costs about as much as a return through the frames
+ * in between.  It is an Error, so handlers that report script failures
+ * but rethrow Errors, such as the REPL's, let it pass.
+ */
+final class Escape extends Error {
+    private static final long serialVersionUID = 1L;
+
+    transient Object value;  // only meaningful in the thread that threw it
+    boolean live = true;  // false once its call/ec has returned
+
+    Escape() {
+        super("escape", null, false, false);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2010, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sioc;
+
+import java.dyn.*;
+import java.util.*;
+import static java.dyn.MethodType.*;
+
+/* A memo table for a pure procedure, as made by SIOC's memoize.
+ * The memoized procedure is an ordinary method handle of the same arity,
+ * bound to one of callArg1, callArg2 or callArgs below.  One argument is
+ * its own key, and two make a Key2, so neither allocates an Object[].
+ * Keys compare with equals, so lists are keyed by contents.
+ * The table is a LinkedHashMap guarded by its own lock, kept in access
+ * order (LRU) or insertion order (FIFO), which drops its eldest entry
+ * past the limit.  Entries may also expire after a time to live.
+ * The procedure is called outside the lock, so two threads which miss
+ * at once may both call it; for a pure procedure that is harmless.
+ */
+final class Memo {
+    private final MethodHandle target;   // generic type, or spread for callArgs
+    private final Map<Object, Object> table;
+    private final int limit;             // 0 means unbounded
+    private final long ttlNanos;         // 0 means no expiry
+    private long hits, misses, evictions, expirations;
+
+    private static final Object NULL_VALUE = new Object();  // stands for a null result or argument
+    private static final Map<MethodHandle, Memo> MEMOS
+        = Collections.synchronizedMap(new WeakHashMap<MethodHandle, Memo>());
+
+    private Memo(MethodHandle target, int limit, long ttlMillis, boolean lru) {
+        this.target = target;
+        this.table = new LinkedHashMap<>(16, 0.75f, lru);
+        this.limit = limit;
+        this.ttlNanos = ttlMillis * 1000000L;
+    }
+
+    /** Return a memoized version of mh, which is registered for stats. */
+    static MethodHandle memoize(MethodHandle mh, int limit, long ttlMillis, boolean lru) {
+        int argc = mh.type().parameterCount();
+        mh = mh.asType(genericMethodType(argc));
+        Memo memo;
+        MethodHandle procedure;
+        if (argc == 1 || argc == 2) {
+            memo = new Memo(mh, limit, ttlMillis, lru);
+            procedure = (argc == 1 ? MH_callArg1 : MH_callArg2).bindTo(memo);
+        } else {
+            memo = new Memo(mh.asSpreader(Object[].class, argc), limit, ttlMillis, lru);
+            procedure = MH_callArgs.bindTo(memo).asCollector(Object[].class, argc);
+        }
+        // the memo must not point back at its procedure, or the weak key would never clear
+        MEMOS.put(procedure, memo);
+        return procedure;
+    }
+
+    /** The memo behind a memoized procedure, or null. */
+    static Memo of(Object procedure) {
+        return MEMOS.get(procedure);
+    }
+
+    private Object callArg1(Object a) throws Throwable {
+        Object key = (a == null ? NULL_VALUE : a);
+        Object x = lookup(key);
+        if (x != null)  return unwrap(x);
+        return store(key, (Object) target.invokeExact(a));
+    }
+    private Object callArg2(Object a, Object b) throws Throwable {
+        Object key = new Key2(a, b);
+        Object x = lookup(key);
+        if (x != null)  return unwrap(x);
+        return store(key, (Object) target.invokeExact(a, b));
+    }
+    private Object callArgs(Object[] args) throws Throwable {
+        Object key = Arrays.asList(args);  // the collector made a fresh array
+        Object x = lookup(key);
+        if (x != null)  return unwrap(x);
+        return store(key, (Object) target.invokeExact(args));
+    }
+
+    // entries are the value, or {value, deadline} when there is a time to live
+    private Object lookup(Object key) {
+        synchronized (table) {
+            Object x = table.get(key);
+            if (x == null) {
+                misses++;
+                return null;
+            }
+            if (ttlNanos != 0) {
+                Object[] entry = (Object[]) x;
+                if ((Long) entry[1] - System.nanoTime() < 0) {
+                    table.remove(key);
+                    expirations++;
+                    misses++;
+                    return null;
+                }
+                x = entry[0];
+            }
+            hits++;
+            return x;
+        }
+    }
+    private Object store(Object key, Object value) {
+        Object x = (value == null ? NULL_VALUE : value);
+        if (ttlNanos != 0)  x = new Object[]{ x, System.nanoTime() + ttlNanos };
+        synchronized (table) {
+            if (table.put(key, x) != null)  return value;
+            if (limit == 0 || table.size() <= limit)  return value;
+            Iterator<Object> eldest = table.values().iterator();
+            eldest.next();
+            eldest.remove();
+            evictions++;
+        }
+        return value;
+    }
+    private static Object unwrap(Object x) {
+        return (x == NULL_VALUE ? null : x);
+    }
+
+    Map<String, Long> stats() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        synchronized (table) {
+            m.put("Entries", (long) table.size());
+            m.put("Limit", (long) limit);
+            m.put("Hits", hits);
+            m.put("Misses", misses);
+            m.put("Evictions", evictions);
+            m.put("Expirations", expirations);
+        }
+        return m;
+    }
+    void clear() {
+        synchronized (table) {
+            table.clear();
+        }
+    }
+
+    private static final class Key2 {
+        final Object a, b;
+        Key2(Object a, Object b) {
+            this.a = a;
+            this.b = b;
+        }
+        @Override
+        public boolean equals(Object x) {
+            if (!(x instanceof Key2))  return false;
+            Key2 that = (Key2) x;
+            return Objects.equals(a, that.a) && Objects.equals(b, that.b);
+        }
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(a) * 31 + Objects.hashCode(b);
+        }
+    }
+
+    private static final MethodHandle MH_callArg1, MH_callArg2, MH_callArgs;
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            MH_callArg1 = lookup.findVirtual(Memo.class, "callArg1", genericMethodType(1));
+            MH_callArg2 = lookup.findVirtual(Memo.class, "callArg2", genericMethodType(2));
+            MH_callArgs = lookup.findVirtual(Memo.class, "callArgs",
+                                             methodType(Object.class, Object[].class));
+        } catch (ReflectiveOperationException ex) {
+            throw new InternalError(ex.toString());
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2010, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sioc;
+
+import java.util.*;
+
+/* A cons cell which is also a java.util.List.
+ * A chain of pairs ends in some other list, usually the empty list, or
+ * in any other object, as (a b . c) does; the list view
+ * then holds only the cars, and equals and hashCode take the end into
+ * account.  Car and cdr are O(1), and subList(n, size()) walks to the
+ * n-th tail instead of making a view.
+ * Pairs are created immutable (for literals) or mutable (for data).
+ */
+final class Pair extends AbstractSequentialList<Object> {
+    private Object car;
+    private Object cdr;
+    private final boolean mutable;
+    private Object expansion;  // memo for a macro use, see SIOC.expandMacro
+
+    private Pair(Object car, Object cdr, boolean mutable) {
+        this.car = car;
+        this.cdr = cdr;
+        this.mutable = mutable;
+    }
+
+    public static Pair cons(Object car, Object cdr) {
+        return new Pair(car, cdr, true);
+    }
+    public static Pair consImmutable(Object car, Object cdr) {
+        return new Pair(car, cdr, false);
+    }
+
+    /** Copy the elements of xs into a fresh chain of pairs, ending in nil. */
+    public static Object fromList(List<?> xs, Object nil, boolean mutable) {
+        Object result = nil;
+        for (ListIterator<?> i = xs.listIterator(xs.size()); i.hasPrevious(); ) {
+            result = new Pair(i.previous(), result, mutable);
+        }
+        return result;
+    }
+    public static Object fromArray(Object[] xs, Object nil, boolean mutable) {
+        Object result = nil;
+        for (int i = xs.length; --i >= 0; ) {
+            result = new Pair(xs[i], result, mutable);
+        }
+        return result;
+    }
+
+    public Object car() { return car; }
+    public Object cdr() { return cdr; }
+    public boolean isMutable() { return mutable; }
+
+    public void setCar(Object x) {
+        checkMutable();
+        car = x;
+    }
+    public void setCdr(Object x) {
+        checkMutable();
+        cdr = x;
+    }
+    // cached even on immutable pairs; it is not part of the value
+    public Object expansion() { return expansion; }
+    public void setExpansion(Object x) { expansion = x; }
+
+    private void checkMutable() {
+        if (!mutable)  throw new UnsupportedOperationException("immutable pair");
+    }
+
+    /** Return the n-th cdr of xs, which need not be a list. */
+    public static Object drop(Object xs, int n) {
+        while (n > 0 && xs instanceof Pair) {
+            xs = ((Pair)xs).cdr;
+            n--;
+        }
+        if (n == 0)  return xs;
+        if (!(xs instanceof List))  throw new IndexOutOfBoundsException("improper list");
+        List<?> ls = (List<?>) xs;
+        return ls.subList(n, ls.size());
+    }
+    /** Return the n-th tail of xs, walking pairs directly.
+     *  An improper end counts as the empty list.
+     */
+    public static List<Object> tail(List<?> xs, int n) {
+        Object ls = xs;
+        while (n > 0 && ls instanceof Pair) {
+            ls = ((Pair)ls).cdr;
+            n--;
+        }
+        List<Object> rest = asList(ls);
+        if (n == 0)  return rest;
+        return rest.subList(n, rest.size());
+    }
+    /** Return whatever ends the chain of pairs from xs.
+     *  set-cdr! can make a chain circular, which is an error here.
+     */
+    public static Object end(Object xs) {
+        Object x = walk(xs);
+        if (x == CIRCULAR)  throw new IllegalStateException("circular list");
+        return x;
+    }
+    /** Is xs a proper list, ending in a list rather than a cycle or an atom? */
+    public static boolean isList(Object xs) {
+        Object x = walk(xs);
+        return x != CIRCULAR && x instanceof List;
+    }
+    private static final Object CIRCULAR = new Object();
+    // the end of the chain, or CIRCULAR; slow takes one step per two of xs
+    private static Object walk(Object xs) {
+        Object slow = xs;
+        for (;;) {
+            if (!(xs instanceof Pair))  return xs;
+            xs = ((Pair)xs).cdr;
+            if (!(xs instanceof Pair))  return xs;
+            xs = ((Pair)xs).cdr;
+            slow = ((Pair)slow).cdr;
+            if (xs == slow)  return CIRCULAR;
+        }
+    }
+    private static List<Object> asList(Object end) {
+        if (end instanceof List)  return (List<Object>) end;
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int size() {
+        int n = 0;
+        Object ls = this, slow = this;
+        while (ls instanceof Pair) {
+            ls = ((Pair)ls).cdr;
+            if ((++n & 1) == 0) {
+                slow = ((Pair)slow).cdr;
+                if (ls == slow)  throw new IllegalStateException("circular list");
+            }
+        }
+        return n + asList(ls).size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public Object get(int index) {
+        if (index < 0)  throw new IndexOutOfBoundsException("index: "+index);
+        List<Object> ls = tail(this, index);
+        if (ls instanceof Pair)  return ((Pair)ls).car;
+        return ls.get(0);
+    }
+
+    @Override
+    public Object set(int index, Object x) {
+        if (index < 0)  throw new IndexOutOfBoundsException("index: "+index);
+        List<Object> ls = tail(this, index);
+        if (!(ls instanceof Pair))  return ls.set(0, x);
+        Pair p = (Pair) ls;
+        Object old = p.car;
+        p.setCar(x);
+        return old;
+    }
+
+    @Override
+    public List<Object> subList(int fromIndex, int toIndex) {
+        if (fromIndex < 0)  throw new IndexOutOfBoundsException("index: "+fromIndex);
+        List<Object> ls = tail(this, fromIndex);
+        if (toIndex - fromIndex == ls.size() && end(ls) instanceof List)
+            return ls;  // a shared tail, not a view
+        return super.subList(fromIndex, toIndex);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Pair))
+            return end(this) instanceof List && super.equals(o);
+        Object xs = this, ys = o;
+        while (xs instanceof Pair && ys instanceof Pair) {
+            if (xs == ys)  return true;
+            if (!Objects.equals(((Pair)xs).car, ((Pair)ys).car))  return false;
+            xs = ((Pair)xs).cdr;
+            ys = ((Pair)ys).cdr;
+        }
+        if (xs instanceof List && ys instanceof List)
+            return xs.equals(ys);
+        return Objects.equals(xs, ys);
+    }
+
+    @Override
+    public int hashCode() {
+        Object end = end(this);
+        int h = super.hashCode();
+        return (end instanceof List) ? h : 31*h + Objects.hashCode(end);
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Cursor(this, 0);
+    }
+
+    @Override
+    public ListIterator<Object> listIterator(int index) {
+        if (index < 0)  throw new IndexOutOfBoundsException("index: "+index);
+        return new Cursor(this, index);
+    }
+
+    /* Walks the pairs, then delegates to whatever list ends the chain.
+     * Moving backwards re-walks from the head, since there are no back links.
+     */
+    private static final class Cursor implements ListIterator<Object> {
+        private final Pair head;
+        private Object rest;              // next tail to visit
+        private ListIterator<Object> end;  // iterator over the non-pair end, once reached
+        private Pair last;                // pair whose car was last returned
+        private int index;
+
+        Cursor(Pair head, int index) {
+            this.head = head;
+            seek(index);
+        }
+        private void seek(int index) {
+            Object ls = head;
+            int n = index;
+            while (n > 0 && ls instanceof Pair) {
+                ls = ((Pair)ls).cdr;
+                n--;
+            }
+            this.rest = ls;
+            this.end = (ls instanceof Pair) ? null : asList(ls).listIterator(n);
+            this.last = null;
+            this.index = index;
+        }
+
+        public boolean hasNext() {
+            return end == null || end.hasNext();
+        }
+        public Object next() {
+            if (end != null) {
+                Object x = end.next();
+                index++;
+                last = null;
+                return x;
+            }
+            Pair p = (Pair) rest;
+            rest = p.cdr;
+            if (!(rest instanceof Pair))  end = asList(rest).listIterator();
+            last = p;
+            index++;
+            return p.car;
+        }
+        public boolean hasPrevious() {
+            return index > 0;
+        }
+        public Object previous() {
+            if (index == 0)  throw new NoSuchElementException();
+            seek(index - 1);
+            Object x;
+            if (end == null) {
+                last = (Pair) rest;
+                x = last.car;
+            } else {
+                x = end.next();
+                end.previous();
+            }
+            return x;
+        }
+        public int nextIndex() { return index; }
+        public int previousIndex() { return index - 1; }
+
+        public void set(Object x) {
+            if (last != null)
+                last.setCar(x);
+            else if (end != null)
+                end.set(x);
+            else
+                throw new IllegalStateException();
+        }
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        public void add(Object x) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sioc;
+
+import java.dyn.*;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.RecursiveTask;
+
+/* One fork-join task for SIOC's par-map, par-for-each and par-reduce.
+ * The range [lo, hi) of in is split in half until it is no longer than
+ * chunk.  Then a leaf either stores f(x) into out at the same index, or
+ * folds its range left to right with f and returns the result.  Partial
+ * folds are combined left to right in a fixed tree, so for a given
+ * length and chunk size the order of the calls never depends on timing.
+ * f has a generic type, (Object)Object for a map or (Object,Object)Object
+ * for a fold.
+ */
+final class ParTask extends RecursiveTask<Object> {
+    private final MethodHandle f;
+    private final Object[] in;
+    private final Object[] out;  // null for a fold
+    private final int lo, hi, chunk;
+
+    ParTask(MethodHandle f, Object[] in, Object[] out, int lo, int hi, int chunk) {
+        this.f = f;
+        this.in = in;
+        this.out = out;
+        this.lo = lo;
+        this.hi = hi;
+        this.chunk = chunk;
+    }
+
+    boolean isLeaf() {
+        return hi - lo <= chunk;
+    }
+
+    @Override
+    protected Object compute() {
+        try {
+            if (isLeaf())
+                return (out != null) ? mapLeaf() : foldLeaf();
+            int mid = (lo + hi) >>> 1;
+            ParTask left  = new ParTask(f, in, out, lo, mid, chunk);
+            ParTask right = new ParTask(f, in, out, mid, hi, chunk);
+            left.fork();
+            Object y = right.compute();
+            Object x = left.join();
+            if (out != null)  return null;
+            return (Object) f.invokeExact(x, y);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new UndeclaredThrowableException(ex);
+        }
+    }
+
+    private Object mapLeaf() throws Throwable {
+        for (int i = lo; i < hi; i++)
+            out[i] = (Object) f.invokeExact(in[i]);
+        return null;
+    }
+    private Object foldLeaf() throws Throwable {
+        Object acc = in[lo];
+        for (int i = lo + 1; i < hi; i++)
+            acc = (Object) f.invokeExact(acc, in[i]);
+        return acc;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2010, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package sioc;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+
+/* The sink under the port SIOC makes for a bare OutputStream.
+ * It holds the stream weakly, so the weak table from streams to their
+ * ports (SIOC.OUTPUT_PORTS) does not keep every stream alive through
+ * its own port.  Whoever writes to the port holds the stream meanwhile.
+ */
+final class PortSink extends OutputStream {
+    private final WeakReference<OutputStream> stream;
+
+    PortSink(OutputStream stream) {
+        this.stream = new WeakReference<>(stream);
+    }
+
+    private OutputStream stream() throws IOException {
+        OutputStream out = stream.get();
+        if (out == null)  throw new IOException("output stream was collected");
+        return out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        stream().write(b);
+    }
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        stream().write(b, off, len);
+    }
+    @Override
+    public void flush() throws IOException {
+        OutputStream out = stream.get();
+        if (out != null)  out.flush();
+    }
+    @Override
+    public void close() throws IOException {
+        OutputStream out = stream.get();
+        if (out != null)  out.close();
+    }
+}
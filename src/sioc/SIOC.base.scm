@@ -10,19 +10,16 @@
 (define boolean? (%bind-left java.lang.Class#isInstance java.lang.Boolean))
 
 (define length java.util.List#size)
-(define list? (%bind-left java.lang.Class#isInstance java.util.List))
 (define list-ref java.util.List#get)
 (define list-set! java.util.List#set)
 ;;(define list-tail (lambda (x n) (java.util.List#subList x n (length x))))
 ;;(define sublist java.util.List#subList)
 (define vector->list java.util.Arrays#asList)
 (define list->vector java.util.List#toArray:1))
-(define car (%bind-right list-ref 0))
-(define cdr (%bind-right list-tail 1))
 (define append! java.util.List#addAll)
 
 ;;native symbol? symbol->string string->symbol
-;;native list-tail
+;;native cons car cdr set-car! set-cdr! pair? null? list-tail
 ;;native %bind-left, %bind-right
 ;;native %method-type should be java.dyn.MethodType#methodType
 
@@ -41,3 +38,57 @@
 (define vector-length java.lang.reflect.Array#getLength)
 (define vector-set! java.lang.reflect.Array#set)
 (define make-vector (%bind-left java.lang.reflect.Array#newInstance java.lang.Object))
+
+;;native make-f64vector f64vector f64vector? f64vector-length list->f64vector f64vector->list
+;;native (likewise s64vector on long[], s32vector on int[])
+;;native %array-element-getter, %array-element-setter
+(define f64vector-ref (%array-element-getter java.lang.Double#TYPE))
+(define f64vector-set! (%array-element-setter java.lang.Double#TYPE))
+(define s64vector-ref (%array-element-getter java.lang.Long#TYPE))
+(define s64vector-set! (%array-element-setter java.lang.Long#TYPE))
+(define s32vector-ref (%array-element-getter java.lang.Integer#TYPE))
+(define s32vector-set! (%array-element-setter java.lang.Integer#TYPE))
+
+;;native make-bytevector make-direct-bytevector bytevector? bytevector-length
+;;native bytevector-{u8,s8,s16,s32,s64,f32,f64}-ref, bytevector-{u8,s16,s32,s64,f32,f64}-set!
+;;native bytevector-slice bytevector-copy bytevector-little-endian bytevector-big-endian
+;;native list->bytevector bytevector->list bytevector-map-file
+
+;;native par-map par-for-each par-reduce (fork-join over lists and vectors)
+;;native spawn touch future? with-task-scope (tasks on a shared daemon pool)
+;;native make-channel channel? channel-put! channel-get channel-close!
+;;native seq seq? seq-range seq-iterate seq-map seq-filter seq-take (lazy, fused stages)
+;;native seq-fold seq->list seq-for-each (one pass over all the stages)
+;;native memoize memo-stats memo-clear! (bounded LRU or FIFO cache, optional ttl)
+;;native call/ec (stackless escape; also --stackless-errors for errors)
+(define call-with-escape-continuation call/ec)
+
+;;native save-session restore-session (also the --session flag for -i)
+(define-syntax future
+  (syntax-rules ()
+    ((_ body ...) (spawn (lambda () body ...)))))
+
+;;native make-hash-table hash-table? hash-table-ref hash-table-ref/default hash-table-set!
+;;native hash-table-delete! hash-table-clear! hash-table-contains? hash-table-count
+;;native hash-table-update!/default hash-table-keys hash-table-values hash-table->alist
+;;native hash-map hash-map? hash-map-ref hash-map-set hash-map-delete hash-map-contains?
+;;native hash-map-count hash-map-keys hash-map-values hash-map->alist
+
+;;native flush-output close-output-port make-output-port open-output-file
+
+;;native print-shared print-shared-to-string (SRFI 38 labels for shared structure)
+
+;;native write-binary read-binary object->bytevector bytevector->object
+;;native open-binary-output-file open-binary-input-file close-port
+
+;;native profile-start profile-stop profile-reset profile-report (also the --profile flag)
+
+;;native cache-stats (also the JMX bean sioc:type=CacheStats)
+
+;;native as-instance (procedure to single-method interface, e.g. java.lang.Runnable)
+;;  direct wrappers only for Runnable, Callable, Comparator, ClassValue and
+;;  InvocationHandler; any other interface gets a (cached) Proxy
+
+;;special quote quasiquote if define set! lambda let begin, compiled to method handles
+;;special define-syntax (syntax-rules) and define-macro; native macroexpand
+;;native + - * / = < > <= >= on int, long and double
@@ -27,12 +27,49 @@ package sioc;
 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.jar.JarEntry;
 import java.net.MalformedURLException;
 import java.util.*;
 import java.io.*;
 import java.dyn.*;
 import java.lang.reflect.*;
+import java.net.JarURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderNotFoundException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.util.ArrayList;
 import static java.dyn.MethodType.*;
 import static java.dyn.MethodHandles.*;
@@ -68,6 +105,12 @@ import static sioc.Workarounds.asInstance;  // 6983726
  * </ul>
  * <p>
  * Class Workaround is a cheat which works around bugs in pre-FCS 292.
+ * Class Pair is the cons cell, which must be a real java.util.List.
+ * Class JfrEvents (optional, in src-jfr) reports to the flight recorder.
+ * Classes ParTask, Seq, Memo and Channel back par-map, lazy sequences,
+ * memoize and channels.
+ * Classes Escape and StacklessException are cheap throwables for
+ * call/ec and for stackless errors.
  * @see http://cr.openjdk.java.net/~jrose/pres/indy-javadoc-mlvm/
  * @author John Rose
  */
@@ -81,6 +124,17 @@ class SIOC {
         setDefault("input", toReader(System.in));
         setDefault("output", toWriter(System.out));
         setDefault("error-output", toWriter(System.err));
+        setDefault("load-cache-directory", defaultLoadCacheDirectory());
+        setDefault("session-file", false);
+        registerStats();
+        try {
+            runArgs(args);
+        } finally {
+            if (profile != null)  F_profile_report();
+            flushPorts();
+        }
+    }
+    private void runArgs(String... args) throws Throwable {
         List<String> av = new ArrayList<>(Arrays.asList(args));
         boolean didRun = false, needInit = true;
         while (!av.isEmpty()) {
@@ -88,6 +142,11 @@ class SIOC {
             set("arguments", av);
             switch (a) {
             case "--no-init":  needInit = false; continue;
+            case "--no-cache":  set("load-cache-directory", false); continue;
+            case "--profile":  F_profile_start(); continue;
+            case "--no-inline":  setValue(K_HBintegrable.toString(), false); continue;
+            case "--stackless-errors":  stacklessErrors = true; continue;
+            case "--session":  set("session-file", av.remove(0)); continue;
             }
             // following options all need initialization
             if (needInit) { doInit(); needInit = false; }
@@ -122,19 +181,24 @@ class SIOC {
     
     private void doInit() throws Throwable {
         F_load("sioc:SIOC.base.scm");
+        integrateLibrary();
     }
 
     private static final int
         KIND_SYMBOL     =  1,  // value is String
         KIND_SPECIAL    =  2,  // value is String
         KIND_INTERPR    = 10,  // value is a map of local bindings
-        KIND_META_MAP   = 11;  // value is a meta-map tuple
+        KIND_META_MAP   = 11,  // value is a meta-map tuple
+        KIND_HASH_MAP   = 12,  // value is a {count, root} tuple of a HAMT
+        KIND_MACRO      = 13;  // value is a transformer MethodHandle or syntax-rules tuple
 
     private final int kind;
     private final Object value;
+    private Object[] profile;  // profiler tables, or null; see F_profile_start
 
     public SIOC() {
-        this(KIND_INTERPR, new HashMap<String,Object>());
+        this(KIND_INTERPR, new ConcurrentHashMap<String,Object>());
+        LIVE_INTERPRETERS.put(this, Boolean.TRUE);  // for the GlobalEntries gauge
     }
 
     public String toString() {
@@ -157,15 +221,19 @@ class SIOC {
         return false;
     }
 
-    private Map<String,Object> values() {
+    // The globals are shared with par-map and task-scope workers, which
+    // define, set! and cache resolved names too, so they live in a
+    // concurrent map.  That map cannot hold null, which is a value
+    // here (void), so null is stored as NULL_VALUE.
+    private ConcurrentMap<String,Object> values() {
         if (kind == KIND_INTERPR)
-            return (Map<String,Object>) value;
+            return (ConcurrentMap<String,Object>) value;
         throw toRTE("not an interpreter");
     }
+    private static final Object NULL_VALUE = new Object();
 
     public void setDefault(String name, Object x) {
-        if (values().containsKey(name))  return;
-        values().put(name, x);
+        values().putIfAbsent(name, (x == null ? NULL_VALUE : x));
     }
     public void set(String name, Object x) {
         setValue(name, x);
@@ -173,7 +241,8 @@ class SIOC {
 
     // strictly local get/set:
     private Object getValue(String name) {
-        return values().get(name);
+        Object x = values().get(name);
+        return (x == NULL_VALUE ? null : x);
     }
     private boolean hasValue(String name) {
         return values().containsKey(name);
@@ -183,17 +252,22 @@ class SIOC {
             values().remove(name);
             return;
         }
-        values().put(name, x);
+        values().put(name, (x == null ? NULL_VALUE : x));
     }
 
+    private static final List<Object>
+        EMPTY_LIST = Collections.unmodifiableList(Arrays.asList());
     private static final Object
         K_HBend_of_file = special("#!end-of-file"),
         K_HBend_of_list = special("#!end-of-list"),
         K_HBdefault_object = special("#!default-object"),
         K_HBunbound = special("#!unbound"),
         K_HBimports = special("#!imports"),
+        K_HBimport_index = special("#!import-index"),
+        K_HBsession = special("#!session"),
+        K_HBresolved = special("#!resolved"),
+        K_HBintegrable = special("#!integrable"),
         DOT_TOKEN = special("."),
-        EMPTY_LIST = Collections.unmodifiableList(Arrays.asList()),
         S_begin = SF_string_Gsymbol("begin"),
         S_quote = SF_string_Gsymbol("quote"),
         S_setB = SF_string_Gsymbol("set!"),
@@ -211,12 +285,25 @@ class SIOC {
         setDefault("trailer", ";; exit\n");
         setDefault("prompt", "\n> ");
         Object quit0 = getValue("quit");  // must restore
-        Error quitter = new Error("quit"); // must be new
+        Escape quitter = new Escape();     // must be new
+        startSession();
+        Object sessionFile = get("session-file");
+        if (sessionFile instanceof String && new File((String) sessionFile).isFile()) {
+            try {
+                F_restore_session(sessionFile);
+            } catch (Throwable ex) {
+                if (ex instanceof Error)  throw ex;
+                Writer err = toWriter(get("error-output"));
+                err.write(";; cannot restore session: "+ex+"\n");
+                err.flush();
+            }
+        }
         try {
-            setValue("quit", throwException(void.class, Error.class).bindTo(quitter));
+            setValue("quit", insertArguments(MH_escape, 0, quitter, null));
             F_display(get("banner"), get("error-output"));
             for (;;) {
                 F_display(get("prompt"), get("error-output"));
+                flushPorts();
                 Object x;
                 try {
                     x = F_read();
@@ -224,14 +311,17 @@ class SIOC {
                         break;
                 } catch (Throwable ex) {
                     if (ex instanceof Error)  throw ex;
+                    flushPorts();
                     ex.printStackTrace();
                     continue;
                 }
                 Object y;
                 try {
                     y = F_eval(x);
+                    noteSessionForm(x);
                 } catch (Throwable ex) {
                     if (ex instanceof Error)  throw ex;
+                    flushPorts();
                     ex.printStackTrace();
                     y = ex;
                 }
@@ -239,18 +329,84 @@ class SIOC {
                     F_print(y);
             }
             F_display(get("trailer"), get("error-output"));
-        } catch (Error ex) {
-            if (ex == quitter)  return;
-            throw ex;
+        } catch (Escape ex) {
+            if (ex != quitter)  throw ex;
         } finally {
+            quitter.live = false;
             setValue("quit", quit0);
         }
+        if (sessionFile instanceof String)
+            F_save_session(sessionFile);
+    }
+
+    // REPL sessions.  The REPL records each definition, import, load or
+    // set! it evaluates without error, and each global name which get
+    // resolves to a Java class, member or engine function.  save-session
+    // writes both to a file, in the load cache format, and restore-session
+    // (or --session file, before -i) evaluates the forms again and
+    // re-resolves the names.  A form which fails again is reported and
+    // dropped, so one stale form does not keep the REPL from starting.
+    // Handles cannot be written out, but after a restore the definitions
+    // are compiled and the reflection and handle caches are warm before
+    // the first prompt.  With --session the REPL saves to the same file
+    // when it exits.
+    private void startSession() {
+        if (getValue(K_HBsession.toString()) != null)  return;
+        // workers resolve names and define things too
+        setValue(K_HBsession.toString(), Collections.synchronizedList(new ArrayList<Object>()));
+        setValue(K_HBresolved.toString(), Collections.synchronizedSet(new LinkedHashSet<String>()));
+    }
+    private void noteSessionForm(Object x) {
+        List<Object> forms = (List<Object>) getValue(K_HBsession.toString());
+        if (forms == null)  return;
+        if (isForm(x, "define") || isForm(x, "define-syntax") || isForm(x, "define-macro")
+            || isForm(x, "import") || isForm(x, "load") || isForm(x, "set!"))
+            forms.add(x);
+    }
+    private void noteResolved(String name) {
+        Set<String> names = (Set<String>) getValue(K_HBresolved.toString());
+        if (names != null)  names.add(name);
+    }
+    private void F_save_session(Object file) throws IOException {
+        List<Object> forms = (List<Object>) getValue(K_HBsession.toString());
+        Set<String> names = (Set<String>) getValue(K_HBresolved.toString());
+        if (forms == null)  throw toRTE("no session to save");
+        List<Object> contents = new ArrayList<>();
+        contents.add(SIOC_VERSION);
+        synchronized (names) {
+            contents.add(Pair.fromList(new ArrayList<Object>(names), EMPTY_LIST, false));
+        }
+        synchronized (forms) {
+            contents.addAll(forms);
+        }
+        writeForms(new File(stringOrSymbol(file)), contents);
+    }
+    private void F_restore_session(Object file) throws Throwable {
+        List<Object> contents = readForms(new File(stringOrSymbol(file)));
+        if (contents.size() < 2 || !SIOC_VERSION.equals(contents.get(0)))
+            throw toRTE("not a session file for "+SIOC_VERSION+": "+file);
+        startSession();
+        List<Object> forms = (List<Object>) getValue(K_HBsession.toString());
+        for (Object x : contents.subList(2, contents.size())) {
+            try {
+                F_eval(x);
+            } catch (Throwable ex) {
+                if (ex instanceof Error)  throw ex;
+                Writer err = toWriter(get("error-output"));
+                err.write(";; restore-session dropped "+limit(SF_print_to_string(x))+": "+ex+"\n");
+                err.flush();
+                continue;
+            }
+            forms.add(x);
+        }
+        for (Object name : toList(contents.get(1)))
+            get(stringOrSymbol(name));  // warms caches; the result is not needed
     }
 
     private Object F_read() throws Throwable { return F_read(get("input")); }
     private Object F_read(Object port) throws Throwable {
         int[] nextc = {NONE};
-        Object x = parse(toReader(port), nextc);
+        Object x = parseForm(toReader(port), nextc);
         if (nextc[0] != NONE)  throw toRTE("bad syntax: "+(char)nextc[0]);
         return x;
     }
@@ -260,13 +416,7 @@ class SIOC {
         unparse(x, toWriter(port), false);
     }
     private static String SF_display_to_string(Object x) {
-        StringWriter port = new StringWriter();
-        try {
-            unparse(x, port, false);
-        } catch (IOException ex) {
-            return "## "+ex;
-        }
-        return port.toString();
+        return unparseToString(x, false, false);
     }
 
     private void F_print(Object x) throws IOException { F_print(x, get("output")); }
@@ -274,13 +424,15 @@ class SIOC {
         unparse(x, toWriter(port), true);
     }
     private static String SF_print_to_string(Object x) {
-        StringWriter port = new StringWriter();
-        try {
-            unparse(x, port, true);
-        } catch (IOException ex) {
-            return "## "+ex;
-        }
-        return port.toString();
+        return unparseToString(x, true, false);
+    }
+
+    private void F_print_shared(Object x) throws IOException { F_print_shared(x, get("output")); }
+    private void F_print_shared(Object x, Object port) throws IOException {
+        unparse(x, toWriter(port), true, true);
+    }
+    private static String SF_print_shared_to_string(Object x) {
+        return unparseToString(x, true, true);
     }
 
     private void F_newline() throws Throwable { F_newline(get("output")); }
@@ -290,6 +442,68 @@ class SIOC {
         out.flush();
     }
 
+    // Output ports are buffered Writers.  Nothing flushes per write;
+    // ports are flushed at newline, at the REPL prompt, at exit,
+    // and by flush-output.  Every buffered port is kept (weakly) in
+    // BUFFERED_PORTS, so the prompt and exit flush them all.
+    // A bare OutputStream gets one port, kept in OUTPUT_PORTS; the port
+    // reaches its stream only weakly (class PortSink), so the entry goes
+    // when the stream does.
+    private static final int DEFAULT_PORT_BUFFER_SIZE = 8192;
+    private static final Map<OutputStream, Writer> OUTPUT_PORTS = new WeakHashMap<>();
+    private static final Map<Writer, Boolean> BUFFERED_PORTS = new WeakHashMap<>();
+
+    private void F_flush_output() throws IOException { F_flush_output(get("output")); }
+    private void F_flush_output(Object port) throws IOException {
+        toWriter(port).flush();
+    }
+    private void F_close_output_port(Object port) throws IOException {
+        Writer out = toWriter(port);
+        synchronized (BUFFERED_PORTS) {
+            BUFFERED_PORTS.remove(out);
+        }
+        out.close();
+    }
+    private void flushPorts() throws IOException {
+        Object out = get("output"), err = get("error-output");
+        if (out instanceof Writer || out instanceof OutputStream)  F_flush_output(out);
+        if (err instanceof Writer || err instanceof OutputStream)  F_flush_output(err);
+        List<Writer> ports;
+        synchronized (BUFFERED_PORTS) {
+            ports = new ArrayList<>(BUFFERED_PORTS.keySet());
+        }
+        for (Writer port : ports) {
+            try {
+                port.flush();
+            } catch (IOException ex) {
+                // closed under us, or its stream is gone; not this caller's problem
+            }
+        }
+    }
+    private static Writer SF_make_output_port(Object sink) throws IOException {
+        return SF_make_output_port(sink, DEFAULT_PORT_BUFFER_SIZE);
+    }
+    private static Writer SF_make_output_port(Object sink, int size) throws IOException {
+        Writer out;
+        if (sink instanceof OutputStream)
+            out = new OutputStreamWriter((OutputStream) sink);
+        else if (sink instanceof Writer)
+            out = (Writer) sink;
+        else
+            out = new FileWriter(stringOrSymbol(sink));
+        return bufferedPort(out, size);
+    }
+    private static Writer bufferedPort(Writer out, int size) {
+        Writer port = new BufferedWriter(out, size);
+        synchronized (BUFFERED_PORTS) {
+            BUFFERED_PORTS.put(port, Boolean.TRUE);
+        }
+        return port;
+    }
+    private static Writer SF_open_output_file(Object name) throws IOException {
+        return SF_make_output_port(name, DEFAULT_PORT_BUFFER_SIZE);
+    }
+
     private List<String> imports(boolean makeIfNone) {
         List<String> imports = (List<String>) getValue(K_HBimports.toString());
         if (imports != null || !makeIfNone)  return imports;
@@ -336,8 +550,10 @@ class SIOC {
             if (lookupScope(scopeName) == null)
                 throw toRTE("unbound scope name: "+scopeName);
             List<String> imports = imports(true);
-            if (!imports.contains(fullName))
+            if (!imports.contains(fullName)) {
                 imports.add(fullName);
+                setValue(K_HBimport_index.toString(), makeImportIndex(imports));
+            }
         } else {
             // single-name import
             if (!hasValue(baseName)) {
@@ -358,7 +574,16 @@ class SIOC {
         List<String> imports = imports(false);
         if (imports == null)  return null;
         Object x1 = null;
+        Map<String, Object> index = (Map<String, Object>) getValue(K_HBimport_index.toString());
+        Object hit = (index == null ? null : index.get(name));
+        if (hit == NOT_IMPORTED)
+            return null;
+        if (hit instanceof List)
+            throw toRTE("ambiguous import of "+name+": "+hit);
+        if (hit != null)
+            x1 = lookupQualified((String) hit);
         for (String i : imports) {
+            if (hit != null && index.containsKey(i))  continue;  // listed, and found there
             String name2 = i + name;
             Object x2;
             if (i.endsWith("."))       x2 = lookupQualified(name2);
@@ -368,11 +593,146 @@ class SIOC {
             if (x1 == null) { x1 = x2; continue; }
             if (x1 != x2)  throw toRTE("ambiguous import of "+name+": "+x1+" & "+x2);
         }
+        if (x1 == null && index != null && !scopesOnly)
+            index.put(name, NOT_IMPORTED);
         return x1;
     }
     
+    // Wildcard imports of packages, and of classes for their nested
+    // classes, resolve through an import index.  The index maps each
+    // simple name to its qualified name, or to a list of them if two
+    // imports supply it, so ambiguity is found at import time.  Each
+    // package is listed once, from directories and jars on the class
+    // path or from the runtime image, and the listing is shared by all
+    // interpreters.  The index also holds each listed import prefix
+    // itself.  A listing may be incomplete (a package split between a
+    // directory and a jar, a jar without directory entries, classes from
+    // some other loader), so it is not the last word:  on an index miss
+    // lookupImported probes every import prefix, one by one, and then
+    // remembers the miss in the index as NOT_IMPORTED.  On an index hit
+    // it skips the listed prefixes and probes only member imports and
+    // packages it could not list.  Workers look up names too, so the
+    // index is a concurrent map.
+    private static final ConcurrentMap<String, Map<String, String>> PACKAGE_LISTINGS
+        = new ConcurrentHashMap<>();
+    private static final Map<String, String> UNLISTED = new HashMap<>();
+    private static final Object NOT_IMPORTED = new Object();  // cached miss in an import index
+    private static Map<String, Object> makeImportIndex(List<String> imports) {
+        Map<String, Object> index = new ConcurrentHashMap<>();
+        for (String i : imports) {
+            if (!i.endsWith("."))  continue;
+            Map<String, String> names = packageListing(i);
+            if (names == UNLISTED)  continue;
+            index.put(i, i);
+            for (Map.Entry<String, String> e : names.entrySet()) {
+                String name = e.getKey(), qname = e.getValue();
+                Object prev = index.get(name);
+                if (prev == null) {
+                    index.put(name, qname);
+                } else if (prev instanceof String) {
+                    index.put(name, new ArrayList<>(Arrays.asList(prev, qname)));
+                } else {
+                    ((List<Object>) prev).add(qname);
+                }
+            }
+        }
+        return index;
+    }
+    private static Map<String, String> packageListing(String prefix) {
+        Map<String, String> names = PACKAGE_LISTINGS.get(prefix);
+        if (names == null) {
+            names = listPackage(prefix);
+            Map<String, String> prev = PACKAGE_LISTINGS.putIfAbsent(prefix, names);
+            if (prev != null)  names = prev;
+        }
+        return names;
+    }
+    private static Map<String, String> listPackage(String prefix) {
+        String scopeName = prefix.substring(0, prefix.length()-1);
+        Map<String, String> names = new HashMap<>();
+        Object scope = lookupQualified(scopeName);
+        if (scope instanceof Class) {
+            for (Class<?> c : ((Class<?>) scope).getClasses())
+                names.put(c.getSimpleName(), c.getName());
+            return names;
+        }
+        String path = scopeName.replace('.', '/');
+        boolean listed = false;
+        try {
+            Enumeration<URL> urls = SIOC.class.getClassLoader().getResources(path);
+            while (urls.hasMoreElements())
+                listed |= listPackage(urls.nextElement(), prefix, names);
+            if (!listed)
+                listed = listRuntimeImage(scopeName, path, prefix, names);
+        } catch (IOException | URISyntaxException | RuntimeException ex) {
+            listed = false;
+        }
+        return listed ? names : UNLISTED;
+    }
+    private static boolean listPackage(URL url, String prefix, Map<String, String> names)
+            throws IOException, URISyntaxException {
+        if (url.getProtocol().equals("jar")) {
+            JarURLConnection conn = (JarURLConnection) url.openConnection();
+            String dir = conn.getEntryName() + "/";
+            for (Enumeration<JarEntry> e = conn.getJarFile().entries(); e.hasMoreElements(); ) {
+                String entry = e.nextElement().getName();
+                if (!entry.startsWith(dir))  continue;
+                String rest = entry.substring(dir.length());
+                int slash = rest.indexOf('/');
+                if (slash < 0)
+                    addListedName(names, prefix, rest, false);
+                else if (slash == rest.length() - 1)
+                    addListedName(names, prefix, rest.substring(0, slash), true);
+            }
+            return true;
+        }
+        Path dir = Paths.get(url.toURI());  // file:, or jrt: on newer JDKs
+        if (!Files.isDirectory(dir))  return false;
+        listDirectory(dir, prefix, names);
+        return true;
+    }
+    // the runtime image hides module packages from getResources
+    private static boolean listRuntimeImage(String scopeName, String path, String prefix,
+                                            Map<String, String> names) throws IOException {
+        FileSystem jrt;
+        try {
+            jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        } catch (ProviderNotFoundException | FileSystemNotFoundException ex) {
+            return false;
+        }
+        Path modules = jrt.getPath("/packages", scopeName);
+        if (!Files.isDirectory(modules))  return false;
+        try (DirectoryStream<Path> ms = Files.newDirectoryStream(modules)) {
+            for (Path m : ms)
+                listDirectory(jrt.getPath("/modules", m.getFileName().toString(), path), prefix, names);
+        }
+        return true;
+    }
+    private static void listDirectory(Path dir, String prefix, Map<String, String> names)
+            throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                if (name.endsWith("/"))  name = name.substring(0, name.length()-1);
+                addListedName(names, prefix, name, Files.isDirectory(p));
+            }
+        }
+    }
+    private static void addListedName(Map<String, String> names, String prefix,
+                                      String name, boolean isPackage) {
+        if (isPackage) {
+            if (!names.containsKey(name))  // a class of the same name wins
+                names.put(name, prefix + name);
+            return;
+        }
+        if (!name.endsWith(".class"))  return;
+        name = name.substring(0, name.length() - ".class".length());
+        if (name.indexOf('$') >= 0 || name.indexOf('-') >= 0)  return;  // nested, or package-info
+        names.put(name, prefix + name);
+    }
+
     private void F_load(File file) throws Throwable {
-        F_load(new FileReader(file));
+        loadCached(Files.readAllBytes(file.toPath()));
     }
     private void F_load(URL url) throws Throwable {
         F_load(url.openStream());
@@ -386,7 +746,7 @@ class SIOC {
             port = new BufferedReader(port);
         try {
             for (;;) {
-                Object x = parse(port, nextc);
+                Object x = parseForm(port, nextc);
                 if (x == K_HBend_of_file)  break;
                 F_eval(x);
             }
@@ -395,15 +755,129 @@ class SIOC {
         }
     }
     private void F_load(Object source) throws Throwable {
-        if (source instanceof String)
+        Object ev = eventBegin(EVENT_LOAD);
+        try {
+            loadSource(source);
+        } finally {
+            if (ev != null)  eventEnd(ev, String.valueOf(source));
+        }
+    }
+    private void loadSource(Object source) throws Throwable {
+        boolean isResource = false;
+        if (source instanceof String) {
+            isResource = ((String) source).startsWith("sioc:");
             source = toFileOrURL((String) source);
-        if (source instanceof File)
+        }
+        if (isResource)
+            loadCached(readAllBytes((InputStream) source));
+        else if (source instanceof File)
             F_load((File)source);
         else if (source instanceof URL)
             F_load((URL)source);
         else
             F_load(toReader(source));
     }
+
+    // Load cache:  the forms of a loaded file are saved in binary, in a
+    // file named by the hash of the source text and SIOC_VERSION.
+    // Loading the same text again reads them back instead of parsing.
+    private static final String SIOC_VERSION = "SIOC-0.3";
+    private static final String LOAD_CACHE_SUFFIX = ".siob";
+
+    private static Object defaultLoadCacheDirectory() {
+        String dir = System.getProperty("sioc.cache.dir");
+        if (dir == null)  dir = System.getProperty("user.home") + File.separator + ".sioc" + File.separator + "cache";
+        if (dir.isEmpty())  return false;
+        return dir;
+    }
+    private File loadCacheFile(byte[] source) {
+        Object dir = get("load-cache-directory");
+        if (!(dir instanceof String || dir instanceof File))  return null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(SIOC_VERSION.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            byte[] hash = md.digest(source);
+            StringBuilder name = new StringBuilder(hash.length * 2 + LOAD_CACHE_SUFFIX.length());
+            for (byte b : hash)
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return new File(dir.toString(), name.append(LOAD_CACHE_SUFFIX).toString());
+        } catch (NoSuchAlgorithmException ex) {
+            return null;
+        }
+    }
+    private void loadCached(byte[] source) throws Throwable {
+        File cache = loadCacheFile(source);
+        if (cache != null && cache.isFile()) {
+            List<Object> forms = readLoadCache(cache);
+            if (forms != null) {
+                for (Object x : forms)  F_eval(x);
+                return;
+            }
+        }
+        List<Object> forms = new ArrayList<>();
+        int[] nextc = {NONE};
+        try (Reader port = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(source)))) {
+            for (;;) {
+                Object x = parseForm(port, nextc);
+                if (x == K_HBend_of_file)  break;
+                forms.add(x);
+                F_eval(x);
+            }
+        }
+        if (cache != null)  writeLoadCache(cache, forms);
+    }
+    private static List<Object> readLoadCache(File cache) {
+        try {
+            return readForms(cache);
+        } catch (IOException | RuntimeException ex) {
+            if (DEBUG)  System.err.println("ignoring bad load cache "+cache+": "+ex);
+            return null;  // just parse it again
+        }
+    }
+    private static void writeLoadCache(File cache, List<Object> forms) {
+        try {
+            writeForms(cache, forms);
+        } catch (IOException | RuntimeException ex) {
+            if (DEBUG)  System.err.println("cannot write load cache "+cache+": "+ex);
+        }
+    }
+    private static List<Object> readForms(File file) throws IOException {
+        List<Object> forms = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            for (;;) {
+                Object x = SF_read_binary(in);
+                if (x == K_HBend_of_file)  return forms;
+                forms.add(x);
+            }
+        }
+    }
+    private static void writeForms(File file, List<Object> forms) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot make directory "+dir);
+        File temp = File.createTempFile("load", ".tmp", dir);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+            for (Object x : forms)  SF_write_binary(x, out);
+        } catch (IOException | RuntimeException ex) {
+            temp.delete();
+            throw ex;
+        }
+        // rename, so a concurrent reader never sees half a file
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    private static byte[] readAllBytes(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) > 0; )
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
     private void F_load_from_string(String exp) throws Throwable {
         F_load(new StringReader(exp));
     }
@@ -440,14 +914,14 @@ class SIOC {
         if (exp instanceof List) {
             List<Object> forms = (List<Object>) exp;
             if (forms.isEmpty())  return exp;  // () self-evaluates
-            Object head = forms.get(0);
+            Object head = forms.get(0), name = head;
             if (SF_symbolQ(head)) {
                 Object sym = head;
                 head = get(SF_symbol_Gstring(sym));
                 if (!SF_procedureQ(head)) {
                     // special cases
                     if (S_quote.equals(sym) && forms.size() == 2) {
-                        return forms.get(1);
+                        return toDatum(forms.get(1));
                     }
                     if ((S_setB.equals(sym) || S_define.equals(sym))
                             && forms.size() == 3 && SF_symbolQ(forms.get(1))) {
@@ -457,7 +931,7 @@ class SIOC {
                         return null;
                     }
                     // no regular binding for the head symbol; compile it
-                    return eval(F_compile(exp));
+                    return (Object) F_compile(exp).invokeExact();
                 }
             } else {
                 head = eval(head);
@@ -466,7 +940,7 @@ class SIOC {
             for (int i = 0; i < args.length; i++) {
                 args[i] = eval(args[i]);
             }
-            return toMethodHandle(head).invokeWithArguments(args);
+            return callProc(null, exp, name, head, args);
         } else if (SF_symbolQ(exp)) {
             Object x = get(SF_symbol_Gstring(exp));
             if (x == K_HBunbound)  throw toRTE("unbound: "+SF_print_to_string(exp));
@@ -484,11 +958,14 @@ class SIOC {
     public Object get(String name) {
         Object x;
         x = getValue(name);
-        if (x != null) {
+        if (x != null)
             return x;
-        }
-        if (values().containsKey(name))
+        if (hasValue(name))
             return null;
+        x = metaCacheGet(SIOC_MAP, META_CONSTANTS, name);
+        if (x != null && x != NO_CONSTANT)
+            return x;  // a primitive overloaded below
+        count(STAT_GLOBAL_MISSES);  // only the slow path is counted
         int dot = name.indexOf(".");
         if (dot == 0) {
             x = lookupSelector(name);
@@ -497,24 +974,33 @@ class SIOC {
         }
         if (name.indexOf("#") >= 0) {
             x = lookupMember(name);
-            if (x != null)
+            if (x != null) {
+                noteResolved(name);
                 return x;
+            }
         }
-        String mang = mangle(name);
-        if (mang != null) {
-            x = metaMapConstant(SIOC_MAP, MANGLE_CONSTANT_PREFIX+mang);
+        String[] prim = PRIMITIVE_INDEX.get(name);
+        if (prim != null) {
+            x = null;
+            if (prim[PRIM_CONSTANT] != null)
+                x = metaMapConstant(SIOC_MAP, prim[PRIM_CONSTANT]);
             if (x != null)          // e.g., K_HBdefault
                 return x;
-            x = metaMapFunctions(SIOC_MAP, MANGLE_GLOBAL_FUNCTION_PREFIX+mang);
+            if (prim[PRIM_GLOBAL_FUNCTION] != null)
+                x = metaMapFunctions(SIOC_MAP, prim[PRIM_GLOBAL_FUNCTION]);
             if (x != null) {        // e.g., SF_list
                 x = overload(x);
-                metaMapConstants(SIOC_MAP).put(name, x);
+                metaCachePut(SIOC_MAP, META_CONSTANTS, name, x);
+                noteResolved(name);
                 return x;
             }
-            x = metaMapFunctions(SIOC_MAP, MANGLE_ENGINE_FUNCTION_PREFIX+mang);
+            if (prim[PRIM_ENGINE_FUNCTION] != null)
+                x = metaMapFunctions(SIOC_MAP, prim[PRIM_ENGINE_FUNCTION]);
             if (x != null) {        // e.g., F_display
                 x = overload(bindAllTo(x, this));
                 setValue(name, x);  // cache bound version
+                integrate(name, x);
+                noteResolved(name);
                 return x;
             }
         }
@@ -522,21 +1008,1044 @@ class SIOC {
             x = lookupQualified(name);
             if (x != null) {
                 setValue(name, x);
+                integrate(name, x);
+                noteResolved(name);
                 return x;
             }
         }
         x = lookupImported(name, false);
         if (x != null) {
             setValue(name, x);
+            integrate(name, x);
+            noteResolved(name);
             return x;
         }
         return K_HBunbound;
     }
 
-    private Object F_compile(Object exp) throws Throwable {
-        throw toRTE("cannot compile: "+limit(SF_print_to_string(exp)));
+    // Profiling
+
+    // When profiling is on, eval calls each procedure through a wrapper
+    // which counts calls and inclusive time, both per procedure name and
+    // per call site.  When it is off, nothing is wrapped.
+    // Counters are not synchronized; numbers from racing threads are approximate.
+    // The tables are, since par-map and task workers add to them too:
+    // the name table is concurrent, and the site table is locked.
+    private static final int // layout of profile tuple
+        PROFILE_BY_NAME = 0,  // table of {name: long[] {calls, nanos}}
+        PROFILE_BY_SITE = 1,  // identity table of {form: {head, wrapped mh, long[] {calls, nanos}}}
+        PROFILE_COUNT   = 2;
+
+    private void F_profile_start() {
+        if (profile != null)  return;
+        Object[] p = new Object[PROFILE_COUNT];
+        p[PROFILE_BY_NAME] = new ConcurrentHashMap<String,long[]>();
+        p[PROFILE_BY_SITE] = Collections.synchronizedMap(new IdentityHashMap<Object,Object[]>());
+        profile = p;
+    }
+    private void F_profile_stop() {
+        profile = null;
+    }
+    private void F_profile_reset() {
+        if (profile == null)  return;
+        profile = null;
+        F_profile_start();
+    }
+    private MethodHandle profiledCallSite(Object form, Object name, MethodHandle mh) {
+        Object[] p = profile;
+        Map<Object,Object[]> bySite = (Map<Object,Object[]>) p[PROFILE_BY_SITE];
+        Object[] site = bySite.get(form);
+        if (site != null && site[0] == mh)  return (MethodHandle) site[1];
+        String key = SF_symbolQ(name) ? SF_symbol_Gstring(name) : "#<procedure "+mh.type()+">";
+        ConcurrentMap<String,long[]> byName = (ConcurrentMap<String,long[]>) p[PROFILE_BY_NAME];
+        long[] nameCounter = byName.get(key);
+        if (nameCounter == null) {
+            long[] prev = byName.putIfAbsent(key, nameCounter = new long[2]);
+            if (prev != null)  nameCounter = prev;
+        }
+        long[] siteCounter = (site != null) ? (long[]) site[2] : new long[2];
+        MethodHandle wrapped = profileWrap(mh, nameCounter, siteCounter);
+        bySite.put(form, new Object[]{ mh, wrapped, siteCounter });
+        return wrapped;
+    }
+
+    // wrapped(a...) = exit(target(a...), enter())
+    private static MethodHandle profileWrap(MethodHandle target, long[] c1, long[] c2) {
+        MethodType type = target.type();
+        Class<?> rtype = type.returnType();
+        MethodHandle exit;  // (R, long)R, or (long)void
+        if (rtype == void.class)
+            exit = insertArguments(MH_profileExitVoid, 0, c1, c2);
+        else
+            exit = insertArguments(MH_profileExit, 0, c1, c2).asType(methodType(rtype, rtype, long.class));
+        MethodHandle call = dropArguments(target, 0, long.class);        // (long, A...)R
+        MethodHandle ret = dropArguments(exit, exit.type().parameterCount(),
+                                         type.parameterList());         // (R, long, A...)R
+        MethodHandle body = foldArguments(ret, call);                     // (long, A...)R
+        MethodHandle wrapped = foldArguments(body, insertArguments(MH_profileEnter, 0, c1, c2));
+        // keep the target's variadic behavior, profiled:
+        MethodHandle typeHandler = insertArguments(MH_profileTypeHandler, 2, target, c1, c2);
+        return wrapped.withTypeHandler(typeHandler);
+    }
+    private static MethodHandle profileTypeHandler(MethodHandle leadmh, MethodType type,
+                                                   MethodHandle target, long[] c1, long[] c2) {
+        return profileWrap(target.asType(type), c1, c2);
+    }
+    private static long profileEnter(long[] c1, long[] c2) {
+        c1[0]++; c2[0]++;
+        return System.nanoTime();
+    }
+    private static Object profileExit(long[] c1, long[] c2, Object result, long start) {
+        profileExitVoid(c1, c2, start);
+        return result;
+    }
+    private static void profileExitVoid(long[] c1, long[] c2, long start) {
+        long t = System.nanoTime() - start;
+        c1[1] += t; c2[1] += t;
+    }
+
+    private void F_profile_report() throws Throwable { F_profile_report(20); }
+    private void F_profile_report(int limit) throws Throwable {
+        Object[] p = profile;
+        if (p == null)  throw toRTE("not profiling");
+        Writer out = toWriter(get("error-output"));
+        Map<String,long[]> byName = (Map<String,long[]>) p[PROFILE_BY_NAME];
+        List<Object[]> procs = new ArrayList<>(), members = new ArrayList<>();
+        for (Map.Entry<String,long[]> e : byName.entrySet()) {
+            // names with '#' are Java members, like java.util.List#size
+            (e.getKey().indexOf('#') > 0 ? members : procs).add(new Object[]{ e.getKey(), e.getValue() });
+        }
+        List<Object[]> sites = new ArrayList<>();
+        Map<Object,Object[]> bySite = (Map<Object,Object[]>) p[PROFILE_BY_SITE];
+        List<Map.Entry<Object,Object[]>> siteEntries;
+        synchronized (bySite) {
+            siteEntries = new ArrayList<>(bySite.entrySet());
+        }
+        for (Map.Entry<Object,Object[]> e : siteEntries) {
+            sites.add(new Object[]{ limit(SF_print_to_string(e.getKey())), e.getValue()[2] });
+        }
+        writeProfileTable(out, "procedures", procs, limit);
+        writeProfileTable(out, "Java members", members, limit);
+        writeProfileTable(out, "call sites", sites, limit);
+        out.flush();
+    }
+    // rows are {label, long[] {calls, nanos}}, ranked by time
+    private static void writeProfileTable(Writer out, String title, List<Object[]> rows, int limit)
+            throws IOException {
+        Collections.sort(rows, C_compareProfileRows);
+        out.write(String.format(";; profile: %s (%d)%n;; %12s %12s  %s%n",
+                                title, rows.size(), "calls", "ms", "name"));
+        for (int i = 0; i < rows.size() && i < limit; i++) {
+            long[] c = (long[]) rows.get(i)[1];
+            out.write(String.format(";; %12d %12.3f  %s%n", c[0], c[1] / 1e6, rows.get(i)[0]));
+        }
+    }
+    private static int compareProfileRows(Object[] r0, Object[] r1) {
+        long t0 = ((long[]) r0[1])[1], t1 = ((long[]) r1[1])[1];
+        return t0 > t1 ? -1 : t0 < t1 ? +1 : 0;
+    }
+
+    /** Compile exp into a thunk which evaluates it at top level. */
+    private MethodHandle F_compile(Object exp) throws Throwable {
+        Object ev = eventBegin(EVENT_COMPILE);
+        try {
+            return compile(exp, null, false).bindTo(TOP_FRAME);
+        } finally {
+            if (ev != null)  eventEnd(ev, limit(SF_print_to_string(exp)));
+        }
+    }
+
+    // Compiler for the special forms.
+    // An expression compiles to a handle of type (Object[] frame)Object.
+    // A frame is {parent frame, local1, local2, ...}.  A closure is its
+    // lambda's entry handle bound to the frame the lambda was made in.
+    // At compile time, scopes mirror frames, as tuples:
+    private static final int // layout of scope
+        SCOPE_NAMES   = 0,  // List<String> of locals; name i is in slot i+1
+        SCOPE_PARENT  = 1,  // enclosing scope, or null at top level
+        SCOPE_LAMBDA  = 2,  // Boolean: frame made by a lambda, not a let
+        SCOPE_MUTATED = 3,  // Set<String> of names assigned in the body
+        SCOPE_SELF    = 4,  // {scope, name} this lambda is bound to, or null
+        SCOPE_ARITY   = 5,  // Integer: fixed parameter count, or -1 if variadic
+        SCOPE_COUNT   = 6;  // length of scope
+    private static final Object[] TOP_FRAME = { null };
+    // A call to the enclosing lambda from tail position returns its next
+    // frame, marked in slot 0, and enterFrame loops instead of recursing.
+    private static final Object[] TAIL_CALL = {};
+
+    private MethodHandle compile(Object exp, Object[] scope, boolean tail) throws Throwable {
+        if (SF_symbolQ(exp))
+            return compileRef(SF_symbol_Gstring(exp), scope);
+        if (!(exp instanceof List) || ((List<?>)exp).isEmpty())
+            return compileConstant(exp);  // self-evaluating
+        List<Object> forms = (List<Object>) exp;
+        Object head = forms.get(0);
+        if (SF_symbolQ(head) && lookupLocal(SF_symbol_Gstring(head), scope) == null) {
+            switch (SF_symbol_Gstring(head)) {
+            case "quote":
+                checkSyntax(forms.size() == 2, exp);
+                return compileConstant(toDatum(forms.get(1)));
+            case "if":      return compileIf(forms, scope, tail);
+            case "begin":   return compileSequence(Pair.tail(forms, 1), scope, tail);
+            case "lambda":
+                checkSyntax(forms.size() >= 3, exp);
+                return compileLambda(forms.get(1), Pair.tail(forms, 2), scope, null);
+            case "let":     return compileLet(forms, scope, tail);
+            case "quasiquote":
+                checkSyntax(forms.size() == 2, exp);
+                return compileQuasi(forms.get(1), scope);
+            case "define":  return compileDefine(forms, scope);
+            case "define-syntax":  return compileDefineSyntax(forms);
+            case "define-macro":   return compileDefineMacro(forms);
+            case "set!":
+                checkSyntax(forms.size() == 3 && SF_symbolQ(forms.get(1)), exp);
+                return compileAssign(SF_symbol_Gstring(forms.get(1)),
+                                     compile(forms.get(2), scope, false), scope);
+            }
+            Object macro = get(SF_symbol_Gstring(head));
+            if (isMacro(macro))
+                return compile(expandMacro(macro, forms), scope, tail);
+        }
+        return compileCall(forms, scope, tail);
+    }
+    private static void checkSyntax(boolean ok, Object exp) {
+        if (!ok)  throw toRTE("bad syntax: "+limit(SF_print_to_string(exp)));
+    }
+
+    private static MethodHandle compileConstant(Object x) {
+        return dropArguments(constant(Object.class, x), 0, Object[].class);
+    }
+    private MethodHandle compileRef(String name, Object[] scope) {
+        int[] loc = lookupLocal(name, scope);
+        if (loc == null) {
+            Object x = integrableValue(name);
+            if (x != NOT_CONSTANT)  return compileConstant(x);
+            MethodHandle ref = insertArguments(MH_globalRef, 0, this, name);
+            return dropArguments(ref, 0, Object[].class);
+        }
+        MethodHandle ref = insertArguments(arrayElementGetter(Object[].class), 1, loc[1]);
+        return frameAt(ref, loc[0]);
+    }
+    private MethodHandle compileAssign(String name, MethodHandle value, Object[] scope) {
+        int[] loc = lookupLocal(name, scope);
+        MethodHandle set;
+        if (loc == null) {
+            set = insertArguments(MH_globalSet, 0, this, name);
+            set = dropArguments(set, 0, Object[].class);
+        } else {
+            set = frameAt(insertArguments(MH_frameSet, 1, loc[1]), loc[0]);
+        }
+        return applyToFrame(set, Arrays.asList(value));
+    }
+    // mh takes a frame first; feed it the frame depth levels up instead
+    private static MethodHandle frameAt(MethodHandle mh, int depth) {
+        for (int i = 0; i < depth; i++)
+            mh = filterArguments(mh, 0, MH_frameUp);
+        return mh;
+    }
+    private static int[] lookupLocal(String name, Object[] scope) {
+        for (int depth = 0; scope != null; depth++, scope = (Object[]) scope[SCOPE_PARENT]) {
+            int i = ((List<String>) scope[SCOPE_NAMES]).lastIndexOf(name);
+            if (i >= 0)  return new int[]{ depth, i + 1 };
+        }
+        return null;
+    }
+
+    private MethodHandle compileIf(List<Object> forms, Object[] scope, boolean tail) throws Throwable {
+        int n = forms.size();
+        checkSyntax(n == 3 || n == 4, forms);
+        MethodHandle test = filterReturnValue(compile(forms.get(1), scope, false), MH_isTrue);
+        MethodHandle then = compile(forms.get(2), scope, tail);
+        MethodHandle otherwise = (n == 4 ? compile(forms.get(3), scope, tail) : compileConstant(null));
+        return guardWithTest(test, then, otherwise);
+    }
+    private MethodHandle compileSequence(List<Object> body, Object[] scope, boolean tail) throws Throwable {
+        int n = body.size();
+        if (n == 0)  return compileConstant(null);
+        MethodHandle[] mhs = new MethodHandle[n];
+        int i = 0;
+        for (Object exp : body) {
+            mhs[i] = compile(exp, scope, tail && i == n-1);
+            i++;
+        }
+        MethodHandle mh = mhs[n-1];
+        while (--i > 0)  // run mhs[i-1], drop its value, then the rest
+            mh = foldArguments(dropArguments(mh, 0, Object.class), mhs[i-1]);
+        return mh;
+    }
+
+    private MethodHandle compileDefine(List<Object> forms, Object[] scope) throws Throwable {
+        checkSyntax(forms.size() >= 3, forms);
+        Object target = forms.get(1);
+        Object params = null;
+        List<Object> body;
+        if (target instanceof List && !((List<?>)target).isEmpty()) {
+            // (define (f . params) body...)
+            params = Pair.drop(target, 1);
+            target = ((List<?>)target).get(0);
+            body = Pair.tail(forms, 2);
+        } else {
+            checkSyntax(forms.size() == 3, forms);
+            body = null;
+            Object value = forms.get(2);
+            if (isForm(value, "lambda") && ((List<?>)value).size() >= 3) {
+                params = ((List<?>)value).get(1);
+                body = Pair.tail((List<Object>) value, 2);
+            }
+        }
+        checkSyntax(SF_symbolQ(target), forms);
+        String name = SF_symbol_Gstring(target);
+        MethodHandle value;
+        if (body == null) {
+            value = compile(forms.get(2), scope, false);
+        } else {
+            // a lambda defined in this very scope may loop on itself
+            Object[] self = null;
+            int[] loc = lookupLocal(name, scope);
+            if (loc != null && loc[0] == 0 && !((Set<?>) scope[SCOPE_MUTATED]).contains(name))
+                self = new Object[]{ scope, name };
+            value = compileLambda(params, body, scope, self);
+        }
+        return compileAssign(name, value, scope);
+    }
+
+    private MethodHandle compileLambda(Object params, List<Object> body,
+                                       Object[] scope, Object[] self) throws Throwable {
+        List<String> names = new ArrayList<>();
+        boolean rest = false;
+        if (SF_symbolQ(params)) {
+            names.add(SF_symbol_Gstring(params));
+            rest = true;
+        } else {
+            for (Object p : toList(params)) {
+                if (p == DOT_TOKEN) { rest = true; continue; }
+                checkSyntax(SF_symbolQ(p), params);
+                names.add(SF_symbol_Gstring(p));
+            }
+            Object end = Pair.end(params);
+            if (!(end instanceof List)) {
+                // (a . b) built by a macro rather than read
+                checkSyntax(SF_symbolQ(end), params);
+                names.add(SF_symbol_Gstring(end));
+                rest = true;
+            }
+        }
+        int nparams = names.size();
+        Object[] inner = makeScope(names, scope, true, body);
+        inner[SCOPE_SELF] = self;
+        inner[SCOPE_ARITY] = (rest ? -1 : nparams);
+        MethodHandle code = compileSequence(body, inner, true);
+        int size = names.size() + 1;  // params and internal defines
+        if (!rest) {
+            MethodHandle entry = insertArguments(MH_enterFrame, 0, code, size);
+            entry = entry.asCollector(Object[].class, nparams);
+            return insertArguments(MH_bindTo, 0, entry).asType(COMPILED_TYPE);
+        }
+        MethodHandle entry = insertArguments(MH_enterFrameRest, 0, code, size, nparams - 1);
+        entry = arityOverload(null, entry);
+        return insertArguments(MH_bindCarefully, 0, entry).asType(COMPILED_TYPE);
     }
-    private String limit(String x) {
+    private static final MethodType COMPILED_TYPE = methodType(Object.class, Object[].class);
+
+    private MethodHandle compileLet(List<Object> forms, Object[] scope, boolean tail) throws Throwable {
+        checkSyntax(forms.size() >= 3, forms);
+        Object loop = null;
+        List<Object> bindings, body;
+        if (SF_symbolQ(forms.get(1))) {
+            // (let loop ((var init)...) body...)
+            checkSyntax(forms.size() >= 4, forms);
+            loop = forms.get(1);
+            bindings = toList(forms.get(2));
+            body = Pair.tail(forms, 3);
+        } else {
+            bindings = toList(forms.get(1));
+            body = Pair.tail(forms, 2);
+        }
+        List<String> names = new ArrayList<>();
+        List<Object> vars = new ArrayList<>();
+        List<MethodHandle> inits = new ArrayList<>();
+        for (Object b : bindings) {
+            List<Object> binding = toList(b);
+            checkSyntax(!binding.isEmpty() && binding.size() <= 2 && SF_symbolQ(binding.get(0)), b);
+            vars.add(binding.get(0));
+            names.add(SF_symbol_Gstring(binding.get(0)));
+            inits.add(binding.size() == 2
+                      ? compile(binding.get(1), scope, false)
+                      : compileConstant(null));
+        }
+        int ninits = inits.size();
+        MethodHandle enter;
+        if (loop == null) {
+            Object[] inner = makeScope(names, scope, false, body);
+            MethodHandle code = compileSequence(body, inner, tail);
+            enter = insertArguments(MH_enterLet, 0, code, names.size() + 1);
+        } else {
+            // the loop lives in a frame of its own, which the inits cannot see
+            String name = SF_symbol_Gstring(loop);
+            Object[] loopScope = makeScope(new ArrayList<>(Arrays.asList(name)), scope, false, null);
+            loopScope[SCOPE_MUTATED] = mutatedNames(body, new HashSet<String>());
+            Object[] self = null;
+            if (!((Set<?>) loopScope[SCOPE_MUTATED]).contains(name))
+                self = new Object[]{ loopScope, name };
+            MethodHandle make = compileLambda(Pair.fromList(vars, EMPTY_LIST, false), body, loopScope, self);
+            enter = insertArguments(MH_enterNamedLet, 0, make);
+        }
+        return applyToFrame(enter.asCollector(Object[].class, ninits), inits);
+    }
+
+    private MethodHandle compileCall(List<Object> forms, Object[] scope, boolean tail) throws Throwable {
+        Object head = forms.get(0);
+        Object f = constantValue(head, scope);
+        if (f instanceof MethodHandle) {
+            Object x = foldCall(forms, scope);
+            if (x != NOT_CONSTANT)  return compileConstant(x);
+        }
+        List<MethodHandle> args = new ArrayList<>();
+        for (Object exp : Pair.tail(forms, 1))
+            args.add(compile(exp, scope, false));
+        int n = args.size();
+        Object[] lambda = (tail ? selfCallee(head, n, scope) : null);
+        if (lambda != null) {
+            int size = ((List<?>) lambda[SCOPE_NAMES]).size() + 1;
+            MethodHandle next = insertArguments(MH_tailFrame, 0, size);
+            next = next.asCollector(Object[].class, n).asType(genericMethodType(n));
+            return applyToFrame(dropArguments(next, 0, Object[].class), args);
+        }
+        if (f instanceof MethodHandle && profile == null) {
+            // a known procedure is called directly, where the JIT can see it
+            MethodHandle mh = (MethodHandle) f, direct = null;
+            int argc = n;
+            try {
+                direct = mh.asType(genericMethodType(argc));
+            } catch (WrongMethodTypeException ex) {
+                // wrong arity; let callProc report it when it happens
+            }
+            if (direct != null)
+                return applyToFrame(dropArguments(direct, 0, Object[].class), args);
+        }
+        MethodHandle call = insertArguments(MH_callProc, 0, this, new Object[1], forms, head);
+        call = dropArguments(call.asCollector(Object[].class, n), 0, Object[].class);
+        args.add(0, compile(head, scope, false));
+        return applyToFrame(call, args);
+    }
+
+    // Constant folding.  A global is integrable if it still has the value
+    // of a native that get() resolved or of a procedure SIOC.base.scm
+    // defined; the compiler then uses that value as a constant.  Code
+    // compiled before such a name is redefined keeps the old value.
+    // The --no-inline flag turns this off.
+    private static final Object NOT_CONSTANT = new Object();
+    private static final Set<String> PURE_PROCEDURES = new HashSet<>(Arrays.asList(
+        "+", "-", "*", "/", "=", "<", ">", "<=", ">=",
+        "%bind-left", "%bind-right", "%compose", "%method-type",
+        "%array-element-getter", "%array-element-setter",
+        "not", "equal?", "boolean?", "char?", "string?", "symbol?", "procedure?",
+        "string->symbol", "symbol->string", "string-length", "string-ref",
+        "substring", "string-append"));
+
+    private Map<String, Object> integrables() {
+        Object x = getValue(K_HBintegrable.toString());
+        if (x == null) {
+            Object m = new ConcurrentHashMap<String, Object>();
+            x = values().putIfAbsent(K_HBintegrable.toString(), m);
+            if (x == null)  x = m;
+        }
+        return (x instanceof Map) ? (Map<String, Object>) x : null;
+    }
+    private void integrate(String name, Object x) {
+        Map<String, Object> m = integrables();
+        if (m != null)  m.put(name, x);
+    }
+    // after SIOC.base.scm:  its procedures may be inlined
+    private void integrateLibrary() {
+        Map<String, Object> m = integrables();
+        if (m == null)  return;
+        for (Map.Entry<String, Object> e : values().entrySet()) {
+            if (e.getValue() instanceof MethodHandle)
+                m.put(e.getKey(), e.getValue());
+        }
+    }
+    private Object integrableValue(String name) {
+        Map<String, Object> m = integrables();
+        if (m == null)  return NOT_CONSTANT;
+        Object x = get(name);
+        if (x == null || x == K_HBunbound)  return NOT_CONSTANT;
+        if (hasValue(name) && m.get(name) != x)  return NOT_CONSTANT;
+        return x;  // otherwise a native of SIOC itself, not shadowed
+    }
+    // The compile-time value of exp, or NOT_CONSTANT.
+    private Object constantValue(Object exp, Object[] scope) throws Throwable {
+        if (SF_symbolQ(exp)) {
+            String name = SF_symbol_Gstring(exp);
+            if (lookupLocal(name, scope) != null)  return NOT_CONSTANT;
+            return integrableValue(name);
+        }
+        if (!(exp instanceof List) || ((List<?>)exp).isEmpty())
+            return exp;
+        List<Object> forms = (List<Object>) exp;
+        if (isForm(forms, "quote") && forms.size() == 2 && lookupLocal("quote", scope) == null)
+            return toDatum(forms.get(1));
+        return foldCall(forms, scope);
+    }
+    // Call a pure procedure on constant arguments now, if it succeeds.
+    private Object foldCall(List<Object> forms, Object[] scope) throws Throwable {
+        Object head = forms.get(0);
+        if (!SF_symbolQ(head) || !PURE_PROCEDURES.contains(SF_symbol_Gstring(head)))
+            return NOT_CONSTANT;
+        Object f = constantValue(head, scope);
+        if (!(f instanceof MethodHandle))  return NOT_CONSTANT;
+        Object[] args = new Object[forms.size() - 1];
+        int i = 0;
+        for (Object exp : Pair.tail(forms, 1)) {
+            Object x = constantValue(exp, scope);
+            if (x == NOT_CONSTANT)  return NOT_CONSTANT;
+            args[i++] = x;
+        }
+        MethodHandle mh = (MethodHandle) f;
+        try {
+            return mh.invokeWithArguments(args);
+        } catch (Exception ex) {
+            return NOT_CONSTANT;  // leave the error for run time
+        }
+    }
+
+    // A template compiles to a handle which conses up only the parts
+    // under an unquote; constant suffixes and subtrees are shared with
+    // the template itself, which the reader made immutable.
+    private MethodHandle compileQuasi(Object template, Object[] scope) throws Throwable {
+        template = toDatum(template);
+        MethodHandle mh = quasi(template, scope, 1);
+        return (mh != null ? mh : compileConstant(template));
+    }
+    // Return null if x is constant at this quasiquote depth.
+    private MethodHandle quasi(Object x, Object[] scope, int depth) throws Throwable {
+        if (x instanceof Object[]) {
+            MethodHandle mh = quasi(Arrays.asList((Object[]) x), scope, depth);
+            return (mh == null ? null : filterReturnValue(mh, MH_quasiVector));
+        }
+        if (!(x instanceof List) || ((List<?>)x).isEmpty())  return null;
+        List<Object> xs = (List<Object>) x;
+        Object head = xs.get(0);
+        if (xs.size() == 2 && S_unquote.equals(head)) {
+            if (depth == 1)  return compile(xs.get(1), scope, false);
+            depth--;
+        } else if (xs.size() == 2 && S_unquote_splicing.equals(head)) {
+            depth--;  // depth 1 is spliced by the enclosing list
+        } else if (xs.size() == 2 && S_quasiquote.equals(head)) {
+            depth++;
+        }
+        int n = xs.size();
+        MethodHandle tail = null;  // null while the suffix is constant
+        Object end = Pair.end(xs);
+        if (depth == 1 && n >= 3 && S_unquote.equals(xs.get(n-2))) {
+            // (a . ,b) reads as (a unquote b)
+            tail = compile(xs.get(n-1), scope, false);
+            n -= 2;
+        } else if (!(end instanceof List)) {
+            tail = quasi(end, scope, depth);  // (a . #(,b))
+        }
+        for (int i = n; --i >= 0; ) {
+            Object elt = xs.get(i);
+            MethodHandle rest = (tail != null ? tail : compileConstant(Pair.drop(xs, i+1)));
+            if (depth == 1 && elt instanceof List && ((List<?>)elt).size() == 2
+                    && S_unquote_splicing.equals(((List<?>)elt).get(0))) {
+                MethodHandle splice = compile(((List<?>)elt).get(1), scope, false);
+                tail = applyToFrame(MH_quasiAppend, Arrays.asList(splice, rest));
+                continue;
+            }
+            MethodHandle car = quasi(elt, scope, depth);
+            if (car == null && tail == null)  continue;  // still a shared suffix
+            if (car == null)  car = compileConstant(elt);
+            tail = applyToFrame(MH_quasiCons, Arrays.asList(car, rest));
+        }
+        return tail;
+    }
+
+    // Macros.  define-syntax and define-macro bind a global name to a
+    // macro object when they are compiled, so the forms after them,
+    // even in the same body, see it.  Each use expands once: the
+    // expansion is kept on the (immutable) source pair.
+    private MethodHandle compileDefineSyntax(List<Object> forms) {
+        checkSyntax(forms.size() == 3 && SF_symbolQ(forms.get(1))
+                    && isForm(forms.get(2), "syntax-rules"), forms);
+        Object rules = parseSyntaxRules(toList(forms.get(2)));
+        set(SF_symbol_Gstring(forms.get(1)), new SIOC(KIND_MACRO, rules));
+        return compileConstant(null);
+    }
+    private MethodHandle compileDefineMacro(List<Object> forms) throws Throwable {
+        checkSyntax(forms.size() >= 3, forms);
+        Object target = forms.get(1);
+        MethodHandle make;
+        if (target instanceof List && !((List<?>)target).isEmpty()) {
+            // (define-macro (name . params) body...)
+            List<Object> sig = (List<Object>) target;
+            target = sig.get(0);
+            make = compileLambda(Pair.tail(sig, 1), Pair.tail(forms, 2), null, null);
+        } else {
+            checkSyntax(forms.size() == 3, forms);
+            make = compile(forms.get(2), null, false);
+        }
+        checkSyntax(SF_symbolQ(target), forms);
+        Object transformer = (Object) make.invokeExact(TOP_FRAME);
+        set(SF_symbol_Gstring(target), new SIOC(KIND_MACRO, toMethodHandle(transformer)));
+        return compileConstant(null);
+    }
+    private static boolean isMacro(Object x) {
+        return x instanceof SIOC && ((SIOC)x).kind == KIND_MACRO;
+    }
+
+    private Object expandMacro(Object macro, List<Object> form) throws Throwable {
+        Pair memo = null;
+        if (form instanceof Pair && !((Pair)form).isMutable()) {
+            memo = (Pair) form;
+            Object[] last = (Object[]) memo.expansion();
+            if (last != null && last[0] == macro)  return last[1];
+        }
+        Object value = ((SIOC)macro).value, x;
+        if (value instanceof MethodHandle) {
+            MethodHandle mh = (MethodHandle) value;
+            Object[] args = Pair.tail(form, 1).toArray();
+            x = mh.invokeWithArguments(args);
+        } else {
+            x = expandSyntaxRules((Object[]) value, form);
+        }
+        if (memo != null)  memo.setExpansion(new Object[]{ macro, x });
+        return x;
+    }
+    /** Expand the outermost macro uses in form until its head is not a macro. */
+    private Object F_macroexpand(Object form) throws Throwable {
+        while (form instanceof List && !((List<?>)form).isEmpty()) {
+            Object head = ((List<?>)form).get(0);
+            if (!SF_symbolQ(head))  break;
+            Object macro = get(SF_symbol_Gstring(head));
+            if (!isMacro(macro))  break;
+            form = expandMacro(macro, (List<Object>) form);
+        }
+        return form;
+    }
+
+    // syntax-rules, matched and instantiated directly on the forms.
+    // Names a template binds with let or lambda are renamed on each use,
+    // which keeps them from capturing the user's names.  Other free
+    // names in the template are looked up where the macro is used.
+    private static final int // layout of syntax-rules
+        RULES_ELLIPSIS = 0,  // String, usually "..."
+        RULES_LITERALS = 1,  // Set<String>
+        RULES_CLAUSES  = 2,  // List<Object[]> of clauses
+        RULES_COUNT    = 3;
+    private static final int // layout of a syntax-rules clause
+        CLAUSE_PATTERN  = 0,  // the pattern, keyword position included
+        CLAUSE_TEMPLATE = 1,
+        CLAUSE_DEPTHS   = 2,  // Map<String,Integer> of pattern variables to ellipsis depth
+        CLAUSE_BINDERS  = 3,  // Set<String> of names the template binds
+        CLAUSE_COUNT    = 4;
+    private static final AtomicInteger RENAME_COUNT = new AtomicInteger();
+
+    private static Object[] parseSyntaxRules(List<Object> spec) {
+        Object[] rules = new Object[RULES_COUNT];
+        int i = 1;
+        rules[RULES_ELLIPSIS] = "...";
+        if (spec.size() > 1 && SF_symbolQ(spec.get(1))) {
+            rules[RULES_ELLIPSIS] = SF_symbol_Gstring(spec.get(1));  // (syntax-rules ::: (lits) ...)
+            i = 2;
+        }
+        checkSyntax(spec.size() > i, spec);
+        Set<String> literals = new HashSet<>();
+        for (Object lit : toList(spec.get(i))) {
+            checkSyntax(SF_symbolQ(lit), spec);
+            literals.add(SF_symbol_Gstring(lit));
+        }
+        rules[RULES_LITERALS] = literals;
+        List<Object[]> clauses = new ArrayList<>();
+        for (Object c : Pair.tail(spec, i+1)) {
+            List<Object> clause = toList(c);
+            checkSyntax(clause.size() == 2 && clause.get(0) instanceof List
+                        && !((List<?>)clause.get(0)).isEmpty(), c);
+            Object[] rule = new Object[CLAUSE_COUNT];
+            rule[CLAUSE_PATTERN] = clause.get(0);
+            rule[CLAUSE_TEMPLATE] = clause.get(1);
+            Map<String, Integer> depths = new HashMap<>();
+            patternVars(Pair.tail((List<Object>) clause.get(0), 1), rules, 0, depths);
+            rule[CLAUSE_DEPTHS] = depths;
+            rule[CLAUSE_BINDERS] = templateBinders(clause.get(1), depths, new HashSet<String>());
+            clauses.add(rule);
+        }
+        rules[RULES_CLAUSES] = clauses;
+        return rules;
+    }
+    private static boolean isEllipsis(Object x, Object[] rules) {
+        return SF_symbolQ(x) && SF_symbol_Gstring(x).equals(rules[RULES_ELLIPSIS]);
+    }
+    private static void patternVars(Object p, Object[] rules, int depth, Map<String, Integer> vars) {
+        if (SF_symbolQ(p)) {
+            String name = SF_symbol_Gstring(p);
+            if (!name.equals("_") && !isEllipsis(p, rules)
+                    && !((Set<?>) rules[RULES_LITERALS]).contains(name))
+                vars.put(name, depth);
+        } else if (p instanceof List) {
+            List<?> ps = (List<?>) p;
+            for (int i = 0, n = ps.size(); i < n; i++) {
+                boolean more = (i+1 < n && isEllipsis(ps.get(i+1), rules));
+                patternVars(ps.get(i), rules, more ? depth+1 : depth, vars);
+                if (more)  i++;
+            }
+        }
+    }
+    // Collect the names bound by let or lambda forms inside template.
+    private static Set<String> templateBinders(Object t, Map<String, Integer> vars, Set<String> names) {
+        if (!(t instanceof List))  return names;
+        List<?> ts = (List<?>) t;
+        List<Object> bound = new ArrayList<>();
+        if (isForm(ts, "lambda") && ts.size() > 1) {
+            Object params = ts.get(1);
+            if (params instanceof List)  bound.addAll((List<?>) params);
+            else  bound.add(params);
+        } else if (isForm(ts, "let") && ts.size() > 2) {
+            Object bindings = ts.get(1);
+            if (SF_symbolQ(bindings)) {
+                bound.add(bindings);  // named let
+                bindings = ts.get(2);
+            }
+            if (bindings instanceof List) {
+                for (Object b : (List<?>) bindings)
+                    bound.add(b instanceof List && !((List<?>)b).isEmpty() ? ((List<?>)b).get(0) : b);
+            }
+        }
+        for (Object b : bound) {
+            if (SF_symbolQ(b) && !vars.containsKey(SF_symbol_Gstring(b)))
+                names.add(SF_symbol_Gstring(b));
+        }
+        for (Object x : ts)
+            templateBinders(x, vars, names);
+        return names;
+    }
+
+    private static Object expandSyntaxRules(Object[] rules, List<Object> form) {
+        for (Object[] rule : (List<Object[]>) rules[RULES_CLAUSES]) {
+            Map<String, Object> b = new HashMap<>();
+            List<Object> pattern = (List<Object>) rule[CLAUSE_PATTERN];
+            if (!matchPattern(Pair.tail(pattern, 1), Pair.tail(form, 1), rules, b))  continue;
+            Map<String, Integer> levels = new HashMap<>((Map<String, Integer>) rule[CLAUSE_DEPTHS]);
+            for (String name : (Set<String>) rule[CLAUSE_BINDERS]) {
+                b.put(name, SF_string_Gsymbol(name+"%"+RENAME_COUNT.incrementAndGet()));
+                levels.put(name, 0);
+            }
+            return instantiate(rule[CLAUSE_TEMPLATE], b, levels, rules);
+        }
+        throw toRTE("no syntax rule matches: "+limit(SF_print_to_string(form)));
+    }
+    private static boolean matchPattern(Object p, Object x, Object[] rules, Map<String, Object> b) {
+        if (SF_symbolQ(p)) {
+            String name = SF_symbol_Gstring(p);
+            if (((Set<?>) rules[RULES_LITERALS]).contains(name))
+                return p.equals(x);
+            if (!name.equals("_"))  b.put(name, x);
+            return true;
+        }
+        if (!(p instanceof List))
+            return Objects.equals(p, x);
+        if (!(x instanceof List))  return false;
+        List<Object> ps = (List<Object>) p, xs = (List<Object>) x;
+        int pn = ps.size(), xn = xs.size();
+        int dot = ps.indexOf(DOT_TOKEN);
+        int fixed = (dot >= 0 ? dot : pn);
+        int ell = -1;
+        for (int i = 1; i < fixed; i++) {
+            if (isEllipsis(ps.get(i), rules)) { ell = i; break; }
+        }
+        int before = (ell >= 0 ? ell - 1 : fixed);
+        int after = (ell >= 0 ? fixed - ell - 1 : 0);
+        if (xn < before + after || (dot < 0 && ell < 0 && xn != pn))  return false;
+        int reps = (ell < 0 ? 0 : xn - before - after);
+        for (int i = 0; i < before; i++) {
+            if (!matchPattern(ps.get(i), xs.get(i), rules, b))  return false;
+        }
+        if (ell >= 0) {
+            Object sub = ps.get(ell - 1);
+            List<Map<String, Object>> seq = new ArrayList<>();
+            for (int k = 0; k < reps; k++) {
+                Map<String, Object> sb = new HashMap<>();
+                if (!matchPattern(sub, xs.get(before + k), rules, sb))  return false;
+                seq.add(sb);
+            }
+            Map<String, Integer> vars = new HashMap<>();
+            patternVars(sub, rules, 0, vars);
+            for (String v : vars.keySet()) {
+                List<Object> vals = new ArrayList<>(reps);
+                for (Map<String, Object> sb : seq)  vals.add(sb.get(v));
+                b.put(v, vals);
+            }
+            for (int j = 0; j < after; j++) {
+                if (!matchPattern(ps.get(ell + 1 + j), xs.get(before + reps + j), rules, b))  return false;
+            }
+        }
+        if (dot >= 0)
+            return matchPattern(ps.get(dot + 1), Pair.drop(xs, before + reps + after), rules, b);
+        return true;
+    }
+    // b holds each variable's value at the current ellipsis level,
+    // and levels says how many ellipses deep that value still is.
+    private static Object instantiate(Object t, Map<String, Object> b,
+                                      Map<String, Integer> levels, Object[] rules) {
+        if (SF_symbolQ(t)) {
+            String name = SF_symbol_Gstring(t);
+            if (!b.containsKey(name))  return t;
+            if (levels.get(name) != 0)  throw toRTE("missing ellipsis after "+name);
+            return b.get(name);
+        }
+        if (t instanceof Object[])
+            return toList(instantiate(Arrays.asList((Object[]) t), b, levels, rules)).toArray();
+        if (!(t instanceof List) || ((List<?>)t).isEmpty())  return t;
+        List<Object> ts = (List<Object>) t;
+        if (ts.size() == 2 && isEllipsis(ts.get(0), rules)) {
+            // (... template) escapes the ellipsis
+            Object[] plain = rules.clone();
+            plain[RULES_ELLIPSIS] = null;
+            return instantiate(ts.get(1), b, levels, plain);
+        }
+        List<Object> out = new ArrayList<>();
+        for (int i = 0, n = ts.size(); i < n; i++) {
+            Object elt = ts.get(i);
+            int dots = 0;
+            while (i+1 < n && isEllipsis(ts.get(i+1), rules)) { dots++; i++; }
+            if (dots == 0)
+                out.add(instantiate(elt, b, levels, rules));
+            else
+                instantiateEach(elt, dots, b, levels, rules, out);
+        }
+        int n = out.size();
+        if (n >= 2 && out.get(n-2) == DOT_TOKEN && out.get(n-1) instanceof List) {
+            List<Object> tail = (List<Object>) out.remove(n-1);
+            out.remove(n-2);
+            return Pair.fromList(out, tail, false);  // (a . (b c)) is (a b c)
+        }
+        return Pair.fromList(out, EMPTY_LIST, false);
+    }
+    private static void instantiateEach(Object t, int dots, Map<String, Object> b,
+                                        Map<String, Integer> levels, Object[] rules,
+                                        List<Object> out) {
+        Map<String, Integer> names = new HashMap<>();
+        patternVars(t, rules, 0, names);
+        List<String> vars = new ArrayList<>();
+        for (String v : names.keySet()) {
+            Integer level = levels.get(v);
+            if (level != null && level > 0)  vars.add(v);
+        }
+        if (vars.isEmpty())  throw toRTE("no pattern variable before ellipsis: "+SF_print_to_string(t));
+        int len = ((List<?>) b.get(vars.get(0))).size();
+        for (String v : vars) {
+            if (((List<?>) b.get(v)).size() != len)
+                throw toRTE("ellipsis lengths differ: "+vars);
+        }
+        for (int k = 0; k < len; k++) {
+            Map<String, Object> sb = new HashMap<>(b);
+            Map<String, Integer> sl = new HashMap<>(levels);
+            for (String v : vars) {
+                sb.put(v, ((List<?>) b.get(v)).get(k));
+                sl.put(v, levels.get(v) - 1);
+            }
+            if (dots > 1)
+                instantiateEach(t, dots - 1, sb, sl, rules, out);
+            else
+                out.add(instantiate(t, sb, sl, rules));
+        }
+    }
+
+    // If head names the innermost lambda, by its own binding and with
+    // the right number of arguments, return that lambda's scope.
+    private static Object[] selfCallee(Object head, int argc, Object[] scope) {
+        if (!SF_symbolQ(head))  return null;
+        Object[] lambda = scope;
+        while (lambda != null && !(Boolean) lambda[SCOPE_LAMBDA])
+            lambda = (Object[]) lambda[SCOPE_PARENT];
+        if (lambda == null || lambda[SCOPE_SELF] == null)  return null;
+        if ((Integer) lambda[SCOPE_ARITY] != argc)  return null;
+        Object[] self = (Object[]) lambda[SCOPE_SELF];
+        String name = SF_symbol_Gstring(head);
+        if (!name.equals(self[1]))  return null;
+        for (Object[] s = scope; s != null; s = (Object[]) s[SCOPE_PARENT]) {
+            if (((List<?>) s[SCOPE_NAMES]).contains(name))
+                return (s == self[0]) ? lambda : null;
+        }
+        return null;
+    }
+
+    // Make a scope for names, plus any names defined at the top of body.
+    private static Object[] makeScope(List<String> names, Object[] parent,
+                                      boolean isLambda, List<Object> body) {
+        Object[] scope = new Object[SCOPE_COUNT];
+        Set<String> mutated = new HashSet<>();
+        if (body != null) {
+            for (Object exp : body) {
+                if (!isForm(exp, "define") || ((List<?>)exp).size() < 2)  continue;
+                Object target = ((List<?>)exp).get(1);
+                if (target instanceof List && !((List<?>)target).isEmpty())
+                    target = ((List<?>)target).get(0);
+                if (!SF_symbolQ(target))  continue;
+                String name = SF_symbol_Gstring(target);
+                if (names.contains(name))
+                    mutated.add(name);  // defined twice, or over a parameter
+                else
+                    names.add(name);
+            }
+            mutatedNames(body, mutated);
+        }
+        scope[SCOPE_NAMES] = names;
+        scope[SCOPE_PARENT] = parent;
+        scope[SCOPE_LAMBDA] = isLambda;
+        scope[SCOPE_MUTATED] = mutated;
+        return scope;
+    }
+    // Collect every name assigned by set! anywhere in x.
+    private static Set<String> mutatedNames(Object x, Set<String> names) {
+        if (!(x instanceof List))  return names;
+        List<?> xs = (List<?>) x;
+        if (isForm(xs, "set!") && xs.size() > 1 && SF_symbolQ(xs.get(1)))
+            names.add(SF_symbol_Gstring(xs.get(1)));
+        if (isForm(xs, "quote"))  return names;
+        for (Object y : xs)
+            mutatedNames(y, names);
+        return names;
+    }
+    private static boolean isForm(Object x, String keyword) {
+        if (!(x instanceof List) || ((List<?>)x).isEmpty())  return false;
+        Object head = ((List<?>)x).get(0);
+        return SF_symbolQ(head) && SF_symbol_Gstring(head).equals(keyword);
+    }
+
+    // Run each of args on the frame, left to right, then pass the frame
+    // and their values to target, which is (Object[], Object...)R.
+    private static MethodHandle applyToFrame(MethodHandle target, List<MethodHandle> args) {
+        int n = args.size();
+        for (int i = n; i >= 1; i--)  // the filter added last runs first
+            target = filterArguments(target, i, args.get(i-1));
+        MethodType type = methodType(target.type().returnType(), Object[].class);
+        return permuteArguments(target, type, new int[n+1]);
+    }
+
+    // runtime support for compiled code
+    private Object globalRef(String name) {
+        Object x = get(name);
+        if (x == K_HBunbound)  throw toRTE("unbound: "+name);
+        return x;
+    }
+    private Object globalSet(String name, Object x) {
+        set(name, x);
+        return null;
+    }
+    // The site, if any, is a one-element cache of {f, f spread for this arity}.
+    private Object callProc(Object[] site, Object exp, Object name,
+                            Object f, Object[] args) throws Throwable {
+        if (site != null && profile == null) {
+            Object[] hit = (Object[]) site[0];
+            if (hit != null && hit[0] == f)
+                return (Object) ((MethodHandle) hit[1]).invokeExact(args);
+        }
+        MethodHandle mh = toMethodHandle(f);
+        if (profile != null)  mh = profiledCallSite(exp, name, mh);
+        else if (site != null) {
+            int argc = args.length;
+            MethodHandle spread = mh.asType(genericMethodType(argc)).asSpreader(Object[].class, argc);
+            site[0] = new Object[]{ f, spread };
+            return (Object) spread.invokeExact(args);
+        }
+        return mh.invokeWithArguments(args);
+    }
+    private static Object quasiCons(Object[] frame, Object car, Object cdr) {
+        return Pair.cons(car, cdr);
+    }
+    private static Object quasiAppend(Object[] frame, Object xs, Object tail) {
+        return Pair.fromList(toList(xs), tail, true);
+    }
+    // Turn the reader's (a . b), spelled with DOT_TOKEN, into real pairs.
+    // Code keeps the reader's spelling; quoted data gets this one.
+    private static Object toDatum(Object x) {
+        if (x instanceof Object[]) {
+            Object[] v = (Object[]) x, w = null;
+            for (int i = 0; i < v.length; i++) {
+                Object y = toDatum(v[i]);
+                if (y == v[i])  continue;
+                if (w == null)  w = v.clone();
+                w[i] = y;
+            }
+            return (w != null ? w : x);
+        }
+        if (!(x instanceof List) || ((List<?>)x).isEmpty())  return x;
+        List<?> xs = (List<?>) x;
+        int n = xs.size();
+        boolean dotted = (n >= 2 && xs.get(n-2) == DOT_TOKEN);
+        if (dotted)  n -= 2;
+        List<Object> elts = null;  // a copy, once anything changes
+        for (int i = 0; i < n; i++) {
+            Object elt = xs.get(i), y = toDatum(elt);
+            if (elts == null && (y != elt || dotted))
+                elts = new ArrayList<>(xs.subList(0, i));
+            if (elts != null)  elts.add(y);
+        }
+        if (elts == null)  return (dotted ? toDatum(xs.get(n+1)) : x);
+        return Pair.fromList(elts, dotted ? toDatum(xs.get(n+1)) : EMPTY_LIST, false);
+    }
+    private static Object quasiVector(Object xs) {
+        return toList(xs).toArray();
+    }
+    private static boolean isTrue(Object x) {
+        return !Boolean.FALSE.equals(x);
+    }
+    private static Object[] frameUp(Object[] frame) {
+        return (Object[]) frame[0];
+    }
+    private static Object frameSet(Object[] frame, int slot, Object x) {
+        frame[slot] = x;
+        return null;
+    }
+    private static Object enterFrame(MethodHandle code, int size,
+                                     Object[] parent, Object[] args) throws Throwable {
+        Object[] frame = new Object[size];
+        frame[0] = parent;
+        System.arraycopy(args, 0, frame, 1, args.length);
+        for (;;) {
+            Object x = (Object) code.invokeExact(frame);
+            if (!(x instanceof Object[]))  return x;
+            Object[] next = (Object[]) x;
+            if (next.length == 0 || next[0] != TAIL_CALL)  return x;
+            next[0] = parent;
+            frame = next;
+        }
+    }
+    private static Object enterFrameRest(MethodHandle code, int size, int required,
+                                         Object[] parent, Object[] args) throws Throwable {
+        if (args.length < required)  throw toRTE("too few arguments: "+args.length);
+        Object[] frame = new Object[size];
+        frame[0] = parent;
+        System.arraycopy(args, 0, frame, 1, required);
+        List<Object> rest = EMPTY_LIST;
+        for (int i = args.length; --i >= required; )
+            rest = Pair.cons(args[i], rest);
+        frame[required + 1] = rest;
+        return (Object) code.invokeExact(frame);
+    }
+    private static Object enterLet(MethodHandle code, int size,
+                                   Object[] parent, Object[] vals) throws Throwable {
+        Object[] frame = new Object[size];
+        frame[0] = parent;
+        System.arraycopy(vals, 0, frame, 1, vals.length);
+        return (Object) code.invokeExact(frame);
+    }
+    private static Object enterNamedLet(MethodHandle make,
+                                        Object[] parent, Object[] vals) throws Throwable {
+        Object[] frame = { parent, null };
+        MethodHandle loop = (MethodHandle) (Object) make.invokeExact(frame);
+        frame[1] = loop;
+        return loop.invokeWithArguments(vals);
+    }
+    private static Object[] tailFrame(int size, Object[] args) {
+        Object[] frame = new Object[size];
+        frame[0] = TAIL_CALL;
+        System.arraycopy(args, 0, frame, 1, args.length);
+        return frame;
+    }
+
+    private static String limit(String x) {
         if (x.length() > 100)
             return x.substring(0, 80).concat(" ...");
         return x;
@@ -546,6 +2055,18 @@ class SIOC {
 
     private static final int EOF = -1, NONE = -2;
 
+    // parse one top-level form
+    private static Object parseForm(Reader port, int[] nextc) throws IOException {
+        Object ev = eventBegin(EVENT_PARSE);
+        Object x = null;
+        try {
+            x = parse(port, nextc);
+            return x;
+        } finally {
+            if (ev != null)  eventEnd(ev, (x == null ? null : limit(SF_print_to_string(x))));
+        }
+    }
+
     private static Object parse(Reader port, int[] nextc) throws IOException {
         int c = nextc[0];
         Object x;
@@ -566,10 +2087,7 @@ class SIOC {
                         xs.add(DOT_TOKEN);
                     }
                     if (x == K_HBend_of_list) {
-                        if (xs.isEmpty())  return EMPTY_LIST;
-                        xs = Arrays.asList(xs.toArray());
-                        xs = Collections.unmodifiableList(xs);
-                        return xs;
+                        return Pair.fromList(xs, EMPTY_LIST, false);
                     }
                     xs.add(x);
                 }
@@ -585,14 +2103,14 @@ class SIOC {
                 }
             case '"': return parseQuoted(port, '"');
             case '|': return SF_string_Gsymbol(parseQuoted(port, '|'));
-            case '\'': return SF_list(S_quote, parse(port, nextc));
-            case '`': return SF_list(S_quasiquote, parse(port, nextc));
+            case '\'': return literalList(S_quote, parse(port, nextc));
+            case '`': return literalList(S_quasiquote, parse(port, nextc));
             case ',':
                 c = port.read();
                 if (c == '@')
-                    return SF_list(S_unquote_splicing, parse(port, nextc));
+                    return literalList(S_unquote_splicing, parse(port, nextc));
                 nextc[0] = c;
-                return SF_list(S_unquote, parse(port, nextc));
+                return literalList(S_unquote, parse(port, nextc));
             case '#':
                 c = port.read();
                 switch (c) {
@@ -620,7 +2138,16 @@ class SIOC {
                     break;
                 default:
                     if (isTokenBreak(c))  break;
-                    return parseIdent(port, nextc, new StringBuilder("#").append((char)c));
+                    x = parseIdent(port, nextc, new StringBuilder("#").append((char)c));
+                    if (nextc[0] == '(' && SF_symbolQ(x)) {
+                        // #f64(...), #s64(...), #s32(...)
+                        Class<?> etype = numericVectorType(x.toString().substring(1));
+                        if (etype != null)
+                            return toNumericVector(etype, (List<?>)parse(port, nextc));
+                        if (x.toString().equals("#u8"))
+                            return SF_list_Gbytevector(parse(port, nextc));
+                    }
+                    return x;
                 }
                 throw toRTE("bad syntax: #"+(char)c);
             default:
@@ -636,6 +2163,10 @@ class SIOC {
         }
     }
 
+    private static Object literalList(Object x, Object y) {
+        return Pair.consImmutable(x, Pair.consImmutable(y, EMPTY_LIST));
+    }
+
     private static Object parseIdent(Reader port, int[] nextc, StringBuilder cs) throws IOException {
         boolean sawEsc = false;
         int pushback = NONE;
@@ -706,59 +2237,242 @@ class SIOC {
     private static final String NAMED_CHARS =
         "\0nul;\7alarm;\bbackspace;\ttab;\nlinefeed;\nnewline;\13vtab;\14page;\rreturn;\23esc;\40space;\177delete;";
 
+    // Printing goes into a StringBuilder, which is reused per thread and
+    // spilled to the port in chunks.  Nesting is tracked on an explicit
+    // stack, so deep structures cannot overflow the Java stack.
+    private static final ThreadLocal<StringBuilder> PRINT_BUFFER = new ThreadLocal<>();
+    private static final int PRINT_SPILL_SIZE = 8192;
+
+    private static StringBuilder claimPrintBuffer() {
+        StringBuilder buf = PRINT_BUFFER.get();
+        if (buf == null)  return new StringBuilder(256);
+        PRINT_BUFFER.set(null);  // in case toString re-enters the printer
+        buf.setLength(0);
+        return buf;
+    }
+    private static void releasePrintBuffer(StringBuilder buf) {
+        if (buf.capacity() <= PRINT_SPILL_SIZE * 4)  PRINT_BUFFER.set(buf);
+    }
+
     private static void unparse(Object x, Writer port, boolean isPrint) throws IOException {
-        boolean didit = false;
+        unparse(x, port, isPrint, false);
+    }
+    private static void unparse(Object x, Writer port, boolean isPrint, boolean shared) throws IOException {
+        StringBuilder buf = claimPrintBuffer();
+        try {
+            unparse(x, buf, port, isPrint, shared);
+            port.append(buf);
+        } finally {
+            releasePrintBuffer(buf);
+        }
+    }
+    private static String unparseToString(Object x, boolean isPrint, boolean shared) {
+        StringBuilder buf = claimPrintBuffer();
+        try {
+            unparse(x, buf, null, isPrint, shared);
+            return buf.toString();
+        } catch (IOException ex) {
+            return "## "+ex;
+        } finally {
+            releasePrintBuffer(buf);
+        }
+    }
+
+    /**
+     * Print x into out, spilling to port (if not null) as the buffer fills.
+     * If shared is true, shared and circular structure is written with
+     * SRFI 38 labels, #n=(...) and #n#.  Otherwise a circular structure
+     * prints forever.
+     */
+    private static void unparse(Object x, StringBuilder out, Writer port,
+                                boolean isPrint, boolean shared) throws IOException {
+        IdentityHashMap<Object,Integer> labels = shared ? findSharedStructure(x) : null;
+        int nextLabel = 0;
+        // each stack entry is the rest of an open list:
+        // a Pair chain, some other List, an Iterator over one,
+        // or an improper end boxed in an Object[1]
+        ArrayList<Object> stack = new ArrayList<>();
+        boolean needSpace = false;
+        for (;;) {
+            if (needSpace)  out.append(' ');
+            needSpace = true;
+            Integer label = (labels == null || x == null ? null : labels.get(x));
+            boolean isRef = false;
+            if (label != null) {
+                isRef = (label >= 0);
+                if (!isRef)  labels.put(x, label = nextLabel++);
+                out.append('#').append((int) label).append(isRef ? '#' : '=');
+            }
+            if (isRef) {
+                // already printed
+            } else if (x instanceof Object[] || x instanceof List) {
+                List<?> xs;
+                if (x instanceof Object[]) {
+                    out.append('#');
+                    xs = Arrays.asList((Object[]) x);
+                } else {
+                    xs = (List<?>) x;
+                }
+                if (xs.isEmpty()) {
+                    out.append("()");
+                } else {
+                    out.append('(');
+                    needSpace = false;
+                    if (xs instanceof Pair) {
+                        stack.add(unparseRest((Pair)xs));
+                        x = ((Pair)xs).car();
+                    } else {
+                        Iterator<?> it = xs.iterator();
+                        x = it.next();
+                        stack.add(it);
+                    }
+                    continue;
+                }
+            } else {
+                unparseAtom(x, out, isPrint);
+            }
+            if (port != null && out.length() >= PRINT_SPILL_SIZE) {
+                port.append(out);
+                out.setLength(0);
+            }
+            // find the next element, closing finished lists
+        nextElement:
+            for (;;) {
+                int top = stack.size() - 1;
+                if (top < 0)  return;
+                Object rest = stack.get(top);
+                if (rest instanceof Pair) {
+                    Pair p = (Pair) rest;
+                    if (labels != null && labels.containsKey(p)) {
+                        // shared or circular tail:  (a b . #0#)
+                        out.append(" .");
+                        stack.set(top, EMPTY_LIST);
+                        x = p;
+                        break nextElement;
+                    }
+                    stack.set(top, unparseRest(p));
+                    x = p.car();
+                    break nextElement;
+                } else if (rest instanceof Object[]) {
+                    // improper end:  (a b . c)
+                    out.append(" .");
+                    stack.set(top, EMPTY_LIST);
+                    x = ((Object[]) rest)[0];
+                    break nextElement;
+                } else if (rest instanceof Iterator) {
+                    Iterator<?> it = (Iterator<?>) rest;
+                    if (it.hasNext()) {
+                        x = it.next();
+                        break nextElement;
+                    }
+                } else if (!((List<?>) rest).isEmpty()) {
+                    stack.set(top, ((List<?>) rest).iterator());
+                    continue nextElement;
+                }
+                stack.remove(top);
+                out.append(')');
+            }
+        }
+    }
+
+    private static Object unparseRest(Pair p) {
+        Object rest = p.cdr();
+        return (rest instanceof List) ? rest : new Object[]{ rest };
+    }
+
+    // Find the lists and vectors reachable more than once from x.
+    // Pair spines are walked cell by cell, so circular cdrs are found too.
+    private static IdentityHashMap<Object,Integer> findSharedStructure(Object x) {
+        IdentityHashMap<Object,Boolean> seen = new IdentityHashMap<>();
+        IdentityHashMap<Object,Integer> shared = new IdentityHashMap<>();
+        ArrayList<Object> todo = new ArrayList<>();
+        todo.add(x);
+        while (!todo.isEmpty()) {
+            Object x1 = todo.remove(todo.size() - 1);
+            if (x1 instanceof Pair) {
+                Object ls = x1;
+                while (ls instanceof Pair) {
+                    if (seen.put(ls, Boolean.TRUE) != null) {
+                        shared.put(ls, -1);
+                        break;
+                    }
+                    todo.add(((Pair)ls).car());
+                    ls = ((Pair)ls).cdr();
+                }
+                if (ls instanceof List)
+                    todo.addAll((List<?>) ls);
+                else if (!(ls instanceof Pair))
+                    todo.add(ls);
+            } else if (x1 instanceof Object[] || (x1 instanceof List && !((List<?>)x1).isEmpty())) {
+                if (seen.put(x1, Boolean.TRUE) != null) {
+                    shared.put(x1, -1);
+                    continue;
+                }
+                todo.addAll(x1 instanceof Object[] ? Arrays.asList((Object[]) x1) : (List<?>) x1);
+            }
+        }
+        return shared;
+    }
+
+    private static void unparseAtom(Object x, StringBuilder out, boolean isPrint) {
         if (x == null) {
-            port.write("#!null");
-            didit = true;
-        } else if (x instanceof List) {
-            List<?> xs = (List<?>)x;
-            port.write('(');
-            boolean first = true;
-            for (Object x1 : xs) {
-                if (first) { first = false; } else { port.write(' '); }
-                unparse(x1, port, isPrint);
-            }
-            port.write(')');
-            didit = true;
-        } else if (x instanceof Object[]) {
-            port.write('#');
-            unparse(Arrays.asList((Object[])x), port, isPrint);
-            didit = true;
-        } else if (isPrint && x instanceof Boolean) {
-            port.write((Boolean)x ? "#t" : "#f");
-            didit = true;
+            out.append("#!null");
+        } else if (x instanceof Integer) {
+            out.append((int) (Integer) x);
+        } else if (x instanceof Long) {
+            out.append((long) (Long) x);
+        } else if (x instanceof Double) {
+            out.append((double) (Double) x);
+        } else if (isPrint && x instanceof String) {
+            unparseQuoted((String)x, out, '"');
         } else if (isPrint && SF_symbolQ(x)) {
             String s = SF_symbol_Gstring(x);
             if (specialIdent(s) != null || hasSpecialChar(s))
-                unparseQuoted(s, port, '|');
+                unparseQuoted(s, out, '|');
             else
-                port.write(s);
-            didit = true;
-        } else if (isPrint && x instanceof String) {
-            unparseQuoted((String)x, port, '"');
-            didit = true;
+                out.append(s);
+        } else if (isPrint && x instanceof Boolean) {
+            out.append((Boolean)x ? "#t" : "#f");
         } else if (x instanceof Character) {
             char c = (Character) x;
             if (isPrint) {
-                port.write("#\\");
+                out.append("#\\");
             }
             if (!isPrint || (c > ' ' && c < 0x7F)) {
-                port.write(c);
+                out.append(c);
             } else {
                 int pos = NAMED_CHARS.indexOf(c);
                 if (pos >= 0) {
-                    port.write(NAMED_CHARS.substring(pos+1, NAMED_CHARS.indexOf(';', pos+2)));
+                    out.append(NAMED_CHARS, pos+1, NAMED_CHARS.indexOf(';', pos+2));
                 } else {
-                    port.write('x');
-                    port.write(Integer.toHexString(c));
+                    out.append('x');
+                    out.append(Integer.toHexString(c));
                 }
             }
-            didit = true;
+        } else if (SF_hash_mapQ(x)) {
+            out.append("#<hash-map ").append(SF_hash_map_count(x)).append('>');
+        } else if (isMacro(x)) {
+            out.append("#<macro>");
+        } else if (x instanceof Seq) {
+            out.append("#<seq>");
+        } else if (x instanceof ByteBuffer) {
+            ByteBuffer bv = (ByteBuffer) x;
+            out.append("#u8(");
+            for (int len = bv.limit(), i = 0; i < len; i++) {
+                if (i > 0)  out.append(' ');
+                out.append(bv.get(i) & 0xFF);
+            }
+            out.append(')');
+        } else if (numericVectorTag(x) != null) {
+            out.append('#').append(numericVectorTag(x)).append('(');
+            for (int len = Array.getLength(x), i = 0; i < len; i++) {
+                if (i > 0)  out.append(' ');
+                out.append(Array.get(x, i));
+            }
+            out.append(')');
+        } else {
+            out.append(String.valueOf(x));
         }
-        if (!didit)
-            port.write(String.valueOf(x));
-        port.flush();
     }
 
     private static final String STR_TRANS = "a\7b\bt\tn\nv\13f\fr\r";
@@ -780,23 +2494,25 @@ class SIOC {
             cs.append((char)c);
         }
     }
-    private static void unparseQuoted(String s, Writer port, char qc) throws IOException {
-        port.write(qc);
+    private static void unparseQuoted(String s, StringBuilder out, char qc) {
+        out.append(qc);
+        int start = 0;  // copy unescaped runs in one go
         for (int len = s.length(), i = 0; i < len; i++) {
             char c = s.charAt(i);
             if (c == qc || c == '\\') {
-                port.write('\\'); port.write(c);
+                out.append(s, start, i).append('\\').append(c);
+                start = i+1;
                 continue;
             }
             int cindex;
             if (!(c >= 'a' && c <= 'z')
                 && (cindex = STR_TRANS.indexOf((char)c)) >= 0) {
-                port.write('\\');
-                c = STR_TRANS.charAt(cindex-1);
+                out.append(s, start, i).append('\\').append(STR_TRANS.charAt(cindex-1));
+                start = i+1;
             }
-            port.write(c);
         }
-        port.write(qc);
+        out.append(s, start, s.length());
+        out.append(qc);
     }
 
     private static final String IDENT_SPECIAL = "(),;'#|\\\"";
@@ -827,9 +2543,9 @@ class SIOC {
         case "": return K_HBend_of_file;
         }
         if (s.charAt(0) == '#' && s.length() > 1) {
-            switch (s.charAt(1)) {
-            case 't': case 'T': return Boolean.TRUE;
-            case 'f': case 'F': return Boolean.FALSE;
+            switch (s.toLowerCase()) {
+            case "#t": case "#true":  return Boolean.TRUE;
+            case "#f": case "#false": return Boolean.FALSE;
             }
         }
         if (NUM_CHARS.indexOf(s.charAt(0)) >= 0) {
@@ -850,7 +2566,326 @@ class SIOC {
                 // ignore
             }
         }
-        return null;
+        return null;
+    }
+
+    // Binary s-expressions
+
+    // A frame is a varint payload length followed by one tagged value.
+    // Symbols are spelled out once per frame, then referenced by index.
+    // Integers are zigzag varints; doubles are 8 bytes, big-endian.
+    // Data built of real improper pairs has its own tag, BIN_PAIRS;
+    // BIN_DOT is only for code, which keeps the reader's spelling.
+    private static final int
+        BIN_NULL       =  0,
+        BIN_FALSE      =  1,
+        BIN_TRUE       =  2,
+        BIN_INT        =  3,  // zigzag varint
+        BIN_LONG       =  4,  // zigzag varint
+        BIN_DOUBLE     =  5,  // 8 bytes
+        BIN_CHAR       =  6,  // varint
+        BIN_STRING     =  7,  // varint length, UTF-8 bytes
+        BIN_SYMBOL     =  8,  // varint length, UTF-8 bytes; next dictionary index
+        BIN_SYMBOL_REF =  9,  // varint dictionary index
+        BIN_LIST       = 10,  // varint count, elements
+        BIN_VECTOR     = 11,  // varint count, elements
+        BIN_DOT        = 12,  // the reader's DOT_TOKEN, in code spelled (a . b)
+        BIN_F64VECTOR  = 13,  // varint count, 8 bytes each
+        BIN_S64VECTOR  = 14,  // varint count, zigzag varints
+        BIN_S32VECTOR  = 15,  // varint count, zigzag varints
+        BIN_BYTEVECTOR = 16,  // varint count, bytes
+        BIN_END_OF_LIST = 17, // a stray close paren, as the reader returns it
+        BIN_PAIRS      = 18;  // varint count, cars, then the improper end
+
+    private static byte[] encodeBinary(Object x) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<Object,Integer> symbols = new HashMap<>();
+        ArrayList<Iterator<?>> stack = new ArrayList<>();
+        for (;;) {
+            if (x == null) {
+                out.write(BIN_NULL);
+            } else if (x instanceof Boolean) {
+                out.write((Boolean)x ? BIN_TRUE : BIN_FALSE);
+            } else if (x instanceof Integer) {
+                out.write(BIN_INT);
+                writeVarint(out, zigzag((Integer)x));
+            } else if (x instanceof Long) {
+                out.write(BIN_LONG);
+                writeVarint(out, zigzag((Long)x));
+            } else if (x instanceof Double) {
+                out.write(BIN_DOUBLE);
+                long bits = Double.doubleToRawLongBits((Double)x);
+                for (int shift = 56; shift >= 0; shift -= 8)
+                    out.write((int)(bits >>> shift));
+            } else if (x instanceof Character) {
+                out.write(BIN_CHAR);
+                writeVarint(out, (Character)x);
+            } else if (x instanceof String) {
+                out.write(BIN_STRING);
+                writeUTF8(out, (String)x);
+            } else if (SF_symbolQ(x)) {
+                Integer index = symbols.get(x);
+                if (index != null) {
+                    out.write(BIN_SYMBOL_REF);
+                    writeVarint(out, index);
+                } else {
+                    symbols.put(x, symbols.size());
+                    out.write(BIN_SYMBOL);
+                    writeUTF8(out, SF_symbol_Gstring(x));
+                }
+            } else if (x == DOT_TOKEN) {
+                out.write(BIN_DOT);
+            } else if (x == K_HBend_of_list) {
+                out.write(BIN_END_OF_LIST);
+            } else if (x instanceof double[]) {
+                double[] v = (double[]) x;
+                out.write(BIN_F64VECTOR);
+                writeVarint(out, v.length);
+                for (double d : v) {
+                    long bits = Double.doubleToRawLongBits(d);
+                    for (int shift = 56; shift >= 0; shift -= 8)
+                        out.write((int)(bits >>> shift));
+                }
+            } else if (x instanceof long[] || x instanceof int[]) {
+                boolean isLong = (x instanceof long[]);
+                int len = Array.getLength(x);
+                out.write(isLong ? BIN_S64VECTOR : BIN_S32VECTOR);
+                writeVarint(out, len);
+                for (int i = 0; i < len; i++)
+                    writeVarint(out, zigzag(isLong ? ((long[])x)[i] : ((int[])x)[i]));
+            } else if (x instanceof ByteBuffer) {
+                ByteBuffer bv = (ByteBuffer) x;
+                out.write(BIN_BYTEVECTOR);
+                writeVarint(out, bv.limit());
+                for (int len = bv.limit(), i = 0; i < len; i++)
+                    out.write(bv.get(i));
+            } else if (x instanceof List || x instanceof Object[]) {
+                List<?> xs = (x instanceof List) ? (List<?>)x : Arrays.asList((Object[])x);
+                Object end = Pair.end(x);
+                if (!(end instanceof List)) {
+                    // (a b . c) built of real pairs
+                    out.write(BIN_PAIRS);
+                    writeVarint(out, xs.size());
+                    List<Object> items = new ArrayList<>(xs);
+                    items.add(end);
+                    stack.add(items.iterator());
+                } else {
+                    out.write((x instanceof List) ? BIN_LIST : BIN_VECTOR);
+                    writeVarint(out, xs.size());
+                    if (!xs.isEmpty())  stack.add(xs.iterator());
+                }
+            } else {
+                throw toRTE("cannot encode: "+limit(SF_print_to_string(x)));
+            }
+            // next element of the innermost open list
+            for (;;) {
+                int top = stack.size() - 1;
+                if (top < 0)  return out.toByteArray();
+                Iterator<?> it = stack.get(top);
+                if (it.hasNext()) {
+                    x = it.next();
+                    break;
+                }
+                stack.remove(top);
+            }
+        }
+    }
+
+    private static Object decodeBinary(ByteBuffer in) {
+        ArrayList<Object> symbols = new ArrayList<>();
+        ArrayList<Object[]> stack = new ArrayList<>();  // open lists, each {tag, elements, fill}
+        for (;;) {
+            Object x;
+            int tag = in.get() & 0xFF;
+            switch (tag) {
+            case BIN_NULL:    x = null; break;
+            case BIN_FALSE:   x = Boolean.FALSE; break;
+            case BIN_TRUE:    x = Boolean.TRUE; break;
+            case BIN_INT:     x = (int) unzigzag(readVarint(in)); break;
+            case BIN_LONG:    x = unzigzag(readVarint(in)); break;
+            case BIN_DOUBLE:  x = in.getDouble(); break;
+            case BIN_CHAR:    x = (char) readVarint(in); break;
+            case BIN_STRING:  x = readUTF8(in); break;
+            case BIN_SYMBOL:
+                x = SF_string_Gsymbol(readUTF8(in));
+                symbols.add(x);
+                break;
+            case BIN_SYMBOL_REF:
+                long index = readVarint(in);
+                if (index >= symbols.size())  throw toRTE("bad binary symbol reference: "+index);
+                x = symbols.get((int) index);
+                break;
+            case BIN_DOT:     x = DOT_TOKEN; break;
+            case BIN_END_OF_LIST:  x = K_HBend_of_list; break;
+            case BIN_F64VECTOR: case BIN_S64VECTOR: case BIN_S32VECTOR: case BIN_BYTEVECTOR:
+                x = readNumericVector(in, tag);
+                break;
+            case BIN_LIST: case BIN_VECTOR:
+                long count = readVarint(in);
+                if (count > in.remaining())  throw toRTE("bad binary length: "+count);
+                if (count > 0) {
+                    stack.add(new Object[]{ tag, new Object[(int) count], 0 });
+                    continue;
+                }
+                x = (tag == BIN_LIST) ? EMPTY_LIST : new Object[0];
+                break;
+            case BIN_PAIRS:
+                long cars = readVarint(in);
+                if (cars < 1 || cars >= in.remaining())  throw toRTE("bad binary length: "+cars);
+                stack.add(new Object[]{ tag, new Object[(int) cars + 1], 0 });
+                continue;
+            default:
+                throw toRTE("bad binary tag: "+tag);
+            }
+            // store x, closing every list it completes
+            for (;;) {
+                int top = stack.size() - 1;
+                if (top < 0)  return x;
+                Object[] frame = stack.get(top);
+                Object[] elts = (Object[]) frame[1];
+                int fill = (Integer) frame[2];
+                elts[fill++] = x;
+                if (fill < elts.length) {
+                    frame[2] = fill;
+                    break;
+                }
+                stack.remove(top);
+                int kind = (Integer) frame[0];
+                if (kind == BIN_PAIRS)
+                    x = Pair.fromArray(Arrays.copyOf(elts, elts.length - 1), elts[elts.length - 1], false);
+                else
+                    x = (kind == BIN_LIST) ? Pair.fromArray(elts, EMPTY_LIST, false) : elts;
+            }
+        }
+    }
+
+    private static Object readNumericVector(ByteBuffer in, int tag) {
+        long count = readVarint(in);
+        if (count > in.remaining())  throw toRTE("bad binary length: "+count);
+        int len = (int) count;
+        switch (tag) {
+        case BIN_F64VECTOR: {
+            double[] v = new double[len];
+            for (int i = 0; i < len; i++)  v[i] = in.getDouble();
+            return v;
+        }
+        case BIN_S64VECTOR: {
+            long[] v = new long[len];
+            for (int i = 0; i < len; i++)  v[i] = unzigzag(readVarint(in));
+            return v;
+        }
+        case BIN_S32VECTOR: {
+            int[] v = new int[len];
+            for (int i = 0; i < len; i++)  v[i] = (int) unzigzag(readVarint(in));
+            return v;
+        }
+        default: {
+            byte[] bytes = new byte[len];
+            in.get(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+        }
+    }
+    private static long zigzag(long x) { return (x << 1) ^ (x >> 63); }
+    private static long unzigzag(long x) { return (x >>> 1) ^ -(x & 1); }
+    private static void writeVarint(OutputStream out, long x) {
+        try {
+            while ((x & ~0x7FL) != 0) {
+                out.write((int)(x & 0x7F) | 0x80);
+                x >>>= 7;
+            }
+            out.write((int) x);
+        } catch (IOException ex) {
+            throw toIE("unexpected", ex);  // out is a ByteArrayOutputStream
+        }
+    }
+    private static long readVarint(ByteBuffer in) {
+        long x = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get();
+            x |= (long)(b & 0x7F) << shift;
+            if (b >= 0)  return x;
+        }
+        throw toRTE("bad binary varint");
+    }
+    private static void writeUTF8(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+    private static String readUTF8(ByteBuffer in) {
+        long len = readVarint(in);
+        if (len > in.remaining())  throw toRTE("bad binary length: "+len);
+        int pos = in.position(), end = pos + (int) len;
+        String s;
+        if (in.hasArray()) {
+            // decode straight out of the backing array
+            s = new String(in.array(), in.arrayOffset() + pos, (int) len, StandardCharsets.UTF_8);
+        } else {
+            ByteBuffer bytes = in.duplicate();
+            bytes.limit(end);
+            s = StandardCharsets.UTF_8.decode(bytes).toString();
+        }
+        in.position(end);
+        return s;
+    }
+
+    private static ByteBuffer SF_object_Gbytevector(Object x) {
+        byte[] payload = encodeBinary(x);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + 5);
+        writeVarint(out, payload.length);
+        out.write(payload, 0, payload.length);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+    private static Object SF_bytevector_Gobject(ByteBuffer bv) {
+        ByteBuffer in = bv.duplicate();
+        in.position(0);
+        long len = readVarint(in);
+        if (len > in.remaining())  throw toRTE("truncated binary frame");
+        in.limit(in.position() + (int) len);
+        Object x = decodeBinary(in);
+        if (in.hasRemaining())  throw toRTE("junk after binary frame");
+        return x;
+    }
+    private static void SF_write_binary(Object x, OutputStream port) throws IOException {
+        byte[] payload = encodeBinary(x);
+        ByteArrayOutputStream head = new ByteArrayOutputStream(5);
+        writeVarint(head, payload.length);
+        head.writeTo(port);
+        port.write(payload);
+    }
+    private static Object SF_read_binary(InputStream port) throws IOException {
+        long len = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = port.read();
+            if (b < 0) {
+                if (shift == 0)  return K_HBend_of_file;
+                throw toRTE("truncated binary frame");
+            }
+            if (shift > 28)  throw toRTE("bad binary frame length");
+            len |= (long)(b & 0x7F) << shift;
+            if (b < 0x80)  break;
+        }
+        if (len > Integer.MAX_VALUE)  throw toRTE("bad binary frame length");
+        byte[] payload = new byte[(int) len];
+        for (int n = 0; n < payload.length; ) {
+            int k = port.read(payload, n, payload.length - n);
+            if (k < 0)  throw toRTE("truncated binary frame");
+            n += k;
+        }
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        Object x = decodeBinary(in);
+        if (in.hasRemaining())  throw toRTE("junk after binary frame");
+        return x;
+    }
+    private static OutputStream SF_open_binary_output_file(Object name) throws IOException {
+        return new BufferedOutputStream(new FileOutputStream(stringOrSymbol(name)));
+    }
+    private static InputStream SF_open_binary_input_file(Object name) throws IOException {
+        return new BufferedInputStream(new FileInputStream(stringOrSymbol(name)));
+    }
+    private static void SF_close_port(Closeable port) throws IOException {
+        port.close();
     }
 
     // Metaobject protocol
@@ -865,7 +2900,16 @@ class SIOC {
         META_CTORS     = 4,  // Class.getConstructors
         META_FUNCTIONS = 5,  // table of {name: mh*}, overloadable
         META_CONSTANTS = 6,  // table of {name: x}, not inherited
-        META_COUNT     = 7;  // length of map
+        META_LIMIT     = 7,  // size bound for each table
+        META_COUNT     = 8;  // length of map
+
+    // The tables are caches in access order, trimmed least recently
+    // used first.  The bound is soft: each class gets the base limit
+    // plus its own member count, so a stream of misses cannot push
+    // out its real names.  Set -Dsioc.metamap.limit=0 for no bound.
+    // The maps still hang off CV_makeMetaMap, and go when the class does.
+    private static final int META_CACHE_LIMIT = Integer.getInteger("sioc.metamap.limit", 256);
+    private static final Object NO_CONSTANT = new Object();  // cached miss
 
     private static Object[] metaMapOf(Class<?> scope) {
         return CV_makeMetaMap.get(scope);
@@ -878,8 +2922,13 @@ class SIOC {
         map[META_FIELDS] = publicOnly ? scope.getFields() : scope.getDeclaredFields();
         map[META_METHODS] = publicOnly ? scope.getMethods() : scope.getDeclaredMethods();
         map[META_CTORS] = publicOnly ? scope.getConstructors() : scope.getDeclaredConstructors();
-        map[META_FUNCTIONS] = new HashMap<>();
-        map[META_CONSTANTS] = new HashMap<>();
+        map[META_FUNCTIONS] = new LinkedHashMap<>(16, 0.75f, true);
+        map[META_CONSTANTS] = new LinkedHashMap<>(16, 0.75f, true);
+        int members = (((Object[])map[META_FIELDS]).length
+                       + ((Object[])map[META_METHODS]).length
+                       + ((Object[])map[META_CTORS]).length);
+        map[META_LIMIT] = (META_CACHE_LIMIT <= 0 ? Integer.MAX_VALUE : META_CACHE_LIMIT + members);
+        LIVE_META_MAPS.put(map, Boolean.TRUE);
         return map;
     }
     private static Class<?> metaMapScope(Object[] map) {
@@ -898,21 +2947,49 @@ class SIOC {
         return (Constructor[]) map[META_CTORS];
     }
     private static Object metaMapFunctions(Object[] map, String name) {
-        Map<String, Object> cache = (Map<String,Object>) map[META_FUNCTIONS];
-        Object x = cache.get(name);
-        if (x == null)  cache.put(name, x = computeMetaMapFunctions(map, name));
+        Object x = metaCacheGet(map, META_FUNCTIONS, name);
+        if (x != null) {
+            count(STAT_FUNCTION_HITS);
+        } else {
+            x = computeMetaMapFunctions(map, name);
+            metaCachePut(map, META_FUNCTIONS, name, x);
+            count(STAT_FUNCTION_MISSES);
+            if (x == NO_METHOD_HANDLES_ARRAY)  count(STAT_FUNCTION_NEGATIVE);
+        }
         if (x == NO_METHOD_HANDLES_ARRAY)  return null;
         return x;
     }
-    private static Map<String, Object> metaMapConstants(Object[] map) {
-         return (Map<String,Object>) map[META_CONSTANTS];
-    }
     private static Object metaMapConstant(Object[] map, String name) {
-        Map<String, Object> cache = (Map<String,Object>) map[META_CONSTANTS];
-        Object x = cache.get(name);
-        if (x == null)  cache.put(name, x = computeMetaMapConstant(map, name));
+        Object x = metaCacheGet(map, META_CONSTANTS, name);
+        if (x != null) {
+            count(STAT_CONSTANT_HITS);
+        } else {
+            x = computeMetaMapConstant(map, name);
+            if (x == null)  x = NO_CONSTANT;
+            metaCachePut(map, META_CONSTANTS, name, x);
+            count(STAT_CONSTANT_MISSES);
+        }
+        if (x == NO_CONSTANT)  return null;
         return x;
     }
+    private static Object metaCacheGet(Object[] map, int table, String name) {
+        Map<String, Object> cache = (Map<String,Object>) map[table];
+        synchronized (cache) {
+            return cache.get(name);  // also marks it recently used
+        }
+    }
+    private static void metaCachePut(Object[] map, int table, String name, Object x) {
+        Map<String, Object> cache = (Map<String,Object>) map[table];
+        boolean functions = (table == META_FUNCTIONS);
+        synchronized (cache) {
+            if (cache.put(name, x) != null)  return;
+            if (cache.size() <= (int) map[META_LIMIT])  return;
+            Iterator<Object> eldest = cache.values().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        count(functions ? STAT_FUNCTION_EVICTIONS : STAT_CONSTANT_EVICTIONS);
+    }
     private static final String
         FIELD_GETTER_PREFIX = "get:",
         FIELD_SETTER_PREFIX = "set:",
@@ -920,6 +2997,15 @@ class SIOC {
         NEW_INSTANCE_NAME = "new";
     private static final Pattern ARITY_PATTERN = Pattern.compile(":[0-9]+$");
     private static Object computeMetaMapFunctions(Object[] map, String name) {
+        Object ev = eventBegin(EVENT_META_LOOKUP);
+        Object mhs = computeMetaMapFunctions0(map, name);
+        if (ev != null) {
+            int count = (mhs instanceof MethodHandle ? 1 : ((MethodHandle[]) mhs).length);
+            eventEnd(ev, metaMapScope(map).getName()+"#"+name+" => "+count);
+        }
+        return mhs;
+    }
+    private static Object computeMetaMapFunctions0(Object[] map, String name) {
         // parse the name
         int minArity = 0, maxArity = (char)-1;
         int col = name.indexOf(':');
@@ -1113,9 +3199,11 @@ class SIOC {
     }
 
     private static Object lookupQualified(String name) { // java.lang.String
+        Object ev = eventBegin(EVENT_CLASS_MISS);
         try {
             return Class.forName(name);
         } catch (ClassNotFoundException ex) {
+            if (ev != null) { eventEnd(ev, name); ev = null; }
         }
         return Package.getPackage(name);
     }
@@ -1123,7 +3211,7 @@ class SIOC {
         return x instanceof Class || x instanceof Package;
     }
     private Object lookupScope(String name) { // String
-        Object x = values().get(name);
+        Object x = getValue(name);
         if (isScope(x))  return x;
         x = lookupQualified(name);
         if (isScope(x))  return x;
@@ -1156,16 +3244,154 @@ class SIOC {
 
     private static final Class<?> VARARGS_TYPE = Object[].class;  // local marker for VA methods
 
+    // Cache counters, published as the MBean sioc:type=CacheStats
+    // (interface SIOCStatsMXBean) when an interpreter first runs.
+    // Set -Dsioc.jmx=false to skip registration; counting is always on.
+    // Only slow paths are counted; a global read that hits costs nothing.
+    // The gauges (MetaMaps through GlobalEntries) are not counters at all:
+    // statsSnapshot measures them from the meta-maps and interpreters
+    // still alive, so they fall again when a class or interpreter goes.
+    private static final int // event counter indexes, named by STAT_NAMES
+        STAT_FUNCTION_HITS      = 0,
+        STAT_FUNCTION_MISSES    = 1,
+        STAT_FUNCTION_NEGATIVE  = 2,   // misses remembered as no-such-function
+        STAT_FUNCTION_EVICTIONS = 3,
+        STAT_CONSTANT_HITS      = 4,
+        STAT_CONSTANT_MISSES    = 5,
+        STAT_CONSTANT_EVICTIONS = 6,
+        STAT_GLOBAL_MISSES      = 7,   // get() falling through to lookup
+        STAT_ARITY_HANDLES      = 8,   // collectors spun by adjustArity
+        STAT_OVERLOAD_HANDLES   = 9,   // arityOverload and typeOverload results
+        STAT_COUNT              = 10;
+    private static final String[] STAT_NAMES = {
+        "FunctionHits", "FunctionMisses", "FunctionNegative", "FunctionEvictions",
+        "ConstantHits", "ConstantMisses", "ConstantEvictions",
+        "GlobalMisses",
+        "ArityHandles", "OverloadHandles"
+    };
+    // rough sizes for ApproximateBytes, on a 64-bit VM with compressed oops
+    private static final long
+        STAT_META_MAP_BYTES = 256,     // tuple, two LinkedHashMaps, reflection arrays
+        STAT_MEMBER_BYTES   = 8 + 96,  // array slot plus the reflected member
+        STAT_ENTRY_BYTES    = 48 + 64; // hash entry plus a small handle or key
+    private static final AtomicLongArray STATS = new AtomicLongArray(STAT_COUNT);
+    // weak sets of what the gauges measure
+    private static final Map<Object[], Boolean> LIVE_META_MAPS
+        = Collections.synchronizedMap(new WeakHashMap<Object[], Boolean>());
+    private static final Map<SIOC, Boolean> LIVE_INTERPRETERS
+        = Collections.synchronizedMap(new WeakHashMap<SIOC, Boolean>());
+
+    private static void count(int stat) {
+        STATS.incrementAndGet(stat);
+    }
+    private static void count(int stat, long n) {
+        STATS.addAndGet(stat, n);
+    }
+    private static Map<String, Long> statsSnapshot() {
+        List<Object[]> maps;
+        List<SIOC> interps;
+        synchronized (LIVE_META_MAPS) {
+            maps = new ArrayList<>(LIVE_META_MAPS.keySet());
+        }
+        synchronized (LIVE_INTERPRETERS) {
+            interps = new ArrayList<>(LIVE_INTERPRETERS.keySet());
+        }
+        long members = 0, functions = 0, constants = 0, globals = 0;
+        for (Object[] map : maps) {
+            members += (metaMapFields(map).length
+                        + metaMapMethods(map).length
+                        + metaMapConstructors(map).length);
+            functions += metaCacheSize(map, META_FUNCTIONS);
+            constants += metaCacheSize(map, META_CONSTANTS);
+        }
+        for (SIOC interp : interps)
+            globals += interp.values().size();
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("MetaMaps", (long) maps.size());
+        m.put("MetaMembers", members);
+        m.put("FunctionEntries", functions);
+        m.put("ConstantEntries", constants);
+        m.put("GlobalEntries", globals);
+        for (int i = 0; i < STAT_COUNT; i++)
+            m.put(STAT_NAMES[i], STATS.get(i));
+        m.put("ApproximateBytes",
+              maps.size() * STAT_META_MAP_BYTES
+              + members * STAT_MEMBER_BYTES
+              + (functions + constants + globals) * STAT_ENTRY_BYTES);
+        return m;
+    }
+    /** (cache-stats) returns the MBean's counters as a map. */
+    private static Map<String, Long> SF_cache_stats() {
+        return statsSnapshot();
+    }
+    private static int metaCacheSize(Object[] map, int table) {
+        Map<String, Object> cache = (Map<String,Object>) map[table];
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+    private static void resetStats() {
+        for (int i = 0; i < STAT_COUNT; i++)
+            STATS.set(i, 0);
+    }
+
+    private static boolean statsRegistered;
+    private static synchronized void registerStats() {
+        if (statsRegistered || "false".equals(System.getProperty("sioc.jmx")))  return;
+        statsRegistered = true;
+        try {
+            MethodHandle mh = LOOKUP
+                .findStatic(SIOC.class, "statsInvoke",
+                            methodType(Object.class,
+                                       Object.class, Method.class, Object[].class));
+            InvocationHandler h = asInstance(mh, InvocationHandler.class);
+            Object bean = Proxy.newProxyInstance(SIOC.class.getClassLoader(),
+                                                 new Class<?>[]{ SIOCStatsMXBean.class }, h);
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(bean, new ObjectName("sioc:type=CacheStats"));
+        } catch (ReflectiveOperationException | JMException | LinkageError ex) {
+            // no JMX here, or another loader got there first
+        }
+    }
+    // InvocationHandler body for the SIOCStatsMXBean proxy
+    private static Object statsInvoke(Object proxy, Method m, Object[] args) {
+        String name = m.getName();
+        switch (name) {
+        case "getCounters":    return statsSnapshot();
+        case "resetCounters":  resetStats(); return null;
+        case "hashCode":       return System.identityHashCode(proxy);
+        case "equals":         return proxy == args[0];
+        case "toString":       return "sioc:type=CacheStats";
+        }
+        Long x = (name.startsWith("get") ? statsSnapshot().get(name.substring(3)) : null);
+        if (x == null)  throw new UnsupportedOperationException(name);
+        return x;
+    }
+
     private static final Lookup LOOKUP = MethodHandles.lookup();
     private static final MethodHandle MH_chooseMethod;
     private static final MethodHandle MH_vaTypeHandler;
     private static final MethodHandle MH_bindTypeHandler;
     private static final MethodHandle MH_applySelector;
     private static final MethodHandle MH_flattenVarargs;
+    private static final MethodHandle MH_profileEnter;
+    private static final MethodHandle MH_profileExit;
+    private static final MethodHandle MH_profileExitVoid;
+    private static final MethodHandle MH_profileTypeHandler;
+    private static final MethodHandle MH_globalRef, MH_globalSet, MH_callProc;
+    private static final MethodHandle MH_isTrue, MH_frameUp, MH_frameSet, MH_tailFrame;
+    private static final MethodHandle MH_enterFrame, MH_enterFrameRest;
+    private static final MethodHandle MH_enterLet, MH_enterNamedLet;
+    private static final MethodHandle MH_bindTo, MH_bindCarefully;
+    private static final MethodHandle MH_quasiCons, MH_quasiAppend, MH_quasiVector;
+    private static final MethodHandle MH_newTaskThread, MH_runTask;
+    private static final MethodHandle MH_escape;
     private static final Comparator<Class<?>> C_compareClasses;
     private static final Comparator<MethodHandle> C_compareMethodHandles;
+    private static final Comparator<Object[]> C_compareProfileRows;
     private static final ClassValue<Object[]> CV_makeMetaMap;
     private static final Object[] SIOC_MAP;
+    private static final Map<String, String[]> PRIMITIVE_INDEX;
     static {
         try {
             MH_chooseMethod = LOOKUP
@@ -1193,6 +3419,97 @@ class SIOC {
                             methodType(Object.class,
                                        Class.class,
                                        Object[].class));
+            MH_profileEnter = LOOKUP
+                .findStatic(SIOC.class, "profileEnter",
+                            methodType(long.class,
+                                       long[].class, long[].class));
+            MH_profileExit = LOOKUP
+                .findStatic(SIOC.class, "profileExit",
+                            methodType(Object.class,
+                                       long[].class, long[].class,
+                                       Object.class, long.class));
+            MH_profileExitVoid = LOOKUP
+                .findStatic(SIOC.class, "profileExitVoid",
+                            methodType(void.class,
+                                       long[].class, long[].class,
+                                       long.class));
+            MH_profileTypeHandler = LOOKUP
+                .findStatic(SIOC.class, "profileTypeHandler",
+                            methodType(MethodHandle.class,
+                                       MethodHandle.class, MethodType.class,
+                                       MethodHandle.class,
+                                       long[].class, long[].class));
+            MH_globalRef = LOOKUP
+                .findVirtual(SIOC.class, "globalRef",
+                             methodType(Object.class, String.class));
+            MH_globalSet = LOOKUP
+                .findVirtual(SIOC.class, "globalSet",
+                             methodType(Object.class, String.class, Object.class));
+            MH_callProc = LOOKUP
+                .findVirtual(SIOC.class, "callProc",
+                             methodType(Object.class,
+                                        Object[].class, Object.class, Object.class,
+                                        Object.class, Object[].class));
+            MH_isTrue = LOOKUP
+                .findStatic(SIOC.class, "isTrue",
+                            methodType(boolean.class, Object.class));
+            MH_frameUp = LOOKUP
+                .findStatic(SIOC.class, "frameUp",
+                            methodType(Object[].class, Object[].class));
+            MH_frameSet = LOOKUP
+                .findStatic(SIOC.class, "frameSet",
+                            methodType(Object.class,
+                                       Object[].class, int.class, Object.class));
+            MH_tailFrame = LOOKUP
+                .findStatic(SIOC.class, "tailFrame",
+                            methodType(Object[].class, int.class, Object[].class));
+            MH_enterFrame = LOOKUP
+                .findStatic(SIOC.class, "enterFrame",
+                            methodType(Object.class,
+                                       MethodHandle.class, int.class,
+                                       Object[].class, Object[].class));
+            MH_enterFrameRest = LOOKUP
+                .findStatic(SIOC.class, "enterFrameRest",
+                            methodType(Object.class,
+                                       MethodHandle.class, int.class, int.class,
+                                       Object[].class, Object[].class));
+            MH_enterLet = LOOKUP
+                .findStatic(SIOC.class, "enterLet",
+                            methodType(Object.class,
+                                       MethodHandle.class, int.class,
+                                       Object[].class, Object[].class));
+            MH_enterNamedLet = LOOKUP
+                .findStatic(SIOC.class, "enterNamedLet",
+                            methodType(Object.class,
+                                       MethodHandle.class,
+                                       Object[].class, Object[].class));
+            MH_quasiCons = LOOKUP
+                .findStatic(SIOC.class, "quasiCons",
+                            methodType(Object.class,
+                                       Object[].class, Object.class, Object.class));
+            MH_quasiAppend = LOOKUP
+                .findStatic(SIOC.class, "quasiAppend",
+                            methodType(Object.class,
+                                       Object[].class, Object.class, Object.class));
+            MH_quasiVector = LOOKUP
+                .findStatic(SIOC.class, "quasiVector",
+                            methodType(Object.class, Object.class));
+            MH_newTaskThread = LOOKUP
+                .findStatic(SIOC.class, "newTaskThread",
+                            methodType(Thread.class, Runnable.class));
+            MH_runTask = LOOKUP
+                .findStatic(SIOC.class, "runTask",
+                            methodType(Object.class, MethodHandle.class, Object[].class));
+            MH_escape = LOOKUP
+                .findStatic(SIOC.class, "escape",
+                            methodType(Object.class, Escape.class, Object.class));
+            MH_bindTo = LOOKUP
+                .findVirtual(MethodHandle.class, "bindTo",
+                             methodType(MethodHandle.class, Object.class));
+            MH_bindCarefully = LOOKUP
+                .findStatic(SIOC.class, "bindCarefully",
+                            methodType(MethodHandle.class,
+                                       MethodHandle.class, Object.class));
             MethodType C_type = methodType(int.class,
                                            Object.class, Object.class);
             MethodType CV_type = methodType(Object.class, Class.class);
@@ -1208,6 +3525,12 @@ class SIOC {
                                        MethodHandle.class, MethodHandle.class));
             C_compareMethodHandles = asInstance(MH_compareMethodHandles.asType(C_type),
                                                 Comparator.class);
+            MethodHandle MH_compareProfileRows = LOOKUP
+                .findStatic(SIOC.class, "compareProfileRows",
+                            methodType(int.class,
+                                       Object[].class, Object[].class));
+            C_compareProfileRows = asInstance(MH_compareProfileRows.asType(C_type),
+                                              Comparator.class);
             MethodHandle MH_makeMetaMap = LOOKUP
                 .findStatic(SIOC.class, "makeMetaMap",
                             methodType(Object[].class, Class.class));
@@ -1215,11 +3538,55 @@ class SIOC {
                                        ClassValue.class);
             CV_makeMetaMap = (ClassValue<Object[]>) cv;
             SIOC_MAP = metaMapOf(SIOC.class);
+            PRIMITIVE_INDEX = makePrimitiveIndex(SIOC_MAP);
         } catch (ReflectiveOperationException ex) {
             throw toIE("bad lookup", ex);
         }
     }
 
+    // Flight recorder events, reported through class JfrEvents (built
+    // apart from src-jfr, see build.xml) if it and jdk.jfr are present.
+    // Otherwise eventBegin just returns null.
+    // Set -Dsioc.jfr=false to turn them off.
+    static final int // event kinds, shared with JfrEvents
+        EVENT_LOAD          = 0,  // F_load
+        EVENT_PARSE         = 1,  // one top-level form read
+        EVENT_COMPILE       = 2,  // F_compile
+        EVENT_META_LOOKUP   = 3,  // computeMetaMapFunctions
+        EVENT_DISPATCH_MISS = 4,  // slow overload dispatch
+        EVENT_CLASS_MISS    = 5;  // Class.forName failure in lookupQualified
+    private static final MethodHandle MH_eventBegin, MH_eventEnd;
+    static {
+        MethodHandle begin = null, end = null;
+        if (!"false".equals(System.getProperty("sioc.jfr"))) {
+            try {
+                Class<?> jfr = Class.forName("sioc.JfrEvents");
+                begin = LOOKUP.findStatic(jfr, "begin", methodType(Object.class, int.class));
+                end = LOOKUP.findStatic(jfr, "end", methodType(void.class, Object.class, String.class));
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                begin = end = null;  // no flight recorder here
+            }
+        }
+        MH_eventBegin = begin;
+        MH_eventEnd = end;
+    }
+    // returns null unless the event kind is being recorded
+    private static Object eventBegin(int kind) {
+        if (MH_eventBegin == null)  return null;
+        try {
+            return (Object) MH_eventBegin.invokeExact(kind);
+        } catch (Throwable ex) {
+            return null;
+        }
+    }
+    private static void eventEnd(Object ev, String detail) {
+        try {
+            MH_eventEnd.invokeExact(ev, detail);
+        } catch (Throwable ex) {
+            // never let the recorder break the interpreter
+        }
+    }
+
     // mh.bindTo(x) but preserving type handler (variadic properties)
     // question:  what relation does this have to JSR 292?
     private static MethodHandle bindCarefully(MethodHandle mh, Object x) {
@@ -1400,9 +3767,11 @@ class SIOC {
             MethodHandle flatten = MH_flattenVarargs.bindTo(vap);
             flatten = flatten.asType(methodType(vap, Object[].class));
             MethodHandle vamh = filterArguments(mh, fixedArgs, flatten);
+            count(STAT_ARITY_HANDLES);
             return vamh.asCollector(Object[].class, collectArgs+1);
         } else {
             // convert (A..., P[]) to (A..., P...)
+            count(STAT_ARITY_HANDLES);
             return mh.asCollector(vap, collectArgs);
         }
     }
@@ -1454,6 +3823,7 @@ class SIOC {
         }
         MethodHandle leadmh = mhs.isEmpty() ? adjustArity(vamh, vamin) : mhs.get(0);
         MethodHandle typeHandler = insertArguments(MH_vaTypeHandler, 2, minac, mhv, vamh);
+        count(STAT_OVERLOAD_HANDLES);
         return leadmh.withTypeHandler(typeHandler);
     }
     private static MethodHandle vaTypeHandler(MethodHandle leadmh, MethodType type,
@@ -1482,6 +3852,7 @@ class SIOC {
         Arrays.sort(mhv, C_compareMethodHandles);
         boolean[] argTypesVary = new boolean[mhv[0].type().parameterCount()];
         MethodType jtype = joinAllTypes(mhv, argTypesVary);
+        count(STAT_OVERLOAD_HANDLES);
         // this path might fail but it produces a better MH:
         MethodHandle result = chooseMethodGuard(mhv, jtype, argTypesVary);
         if (result != null)  return result;
@@ -1490,6 +3861,8 @@ class SIOC {
     }
 
     private static MethodHandle chooseMethod(MethodHandle[] mhs, Object[] args) {
+        Object ev = eventBegin(EVENT_DISPATCH_MISS);
+        if (ev != null)  eventEnd(ev, "chooseMethod "+mhs[0].type()+" of "+mhs.length);
         // Pick first matching method.  Caller pre-ordered them.
     scanList:
         for (MethodHandle mh : mhs) {
@@ -1504,6 +3877,8 @@ class SIOC {
 
     private static MethodHandle chooseMethodGuardSlow(MethodHandle[] mhs,
                                                   MethodType jtype) {
+        Object ev = eventBegin(EVENT_DISPATCH_MISS);
+        if (ev != null)  eventEnd(ev, "slow guard "+jtype+" of "+mhs.length);
         int ac = mhs[0].type().parameterCount();
         MethodHandle chooser = MH_chooseMethod.bindTo(mhs).asCollector(Object[].class, ac);
         return foldArguments(genericInvoker(jtype), chooser);
@@ -1683,6 +4058,55 @@ class SIOC {
         //MANGLE_SYMBOL_PREFIX = "S_",  // not used reflectively
         MANGLE_CONSTANT_PREFIX = "K_";
     private static final String MANGLE_CHARS = "A@B!C:D/E=G>H#L<M&P+Q?S*T%V^";
+    // The primitive index maps a Scheme name, such as list or #!default,
+    // to the names of the K_, SF_ and F_ members which get would try for
+    // it, in that order.  It is built once, so a lookup is one probe with
+    // no mangling.  Members whose names do not demangle and mangle back
+    // to themselves are left out; mangle could not reach them either,
+    // except through spellings with _ or hex escapes.
+    private static final int PRIM_CONSTANT = 0, PRIM_GLOBAL_FUNCTION = 1, PRIM_ENGINE_FUNCTION = 2;
+    private static Map<String, String[]> makePrimitiveIndex(Object[] map) {
+        Map<String, String[]> index = new HashMap<>();
+        for (Field f : metaMapFields(map))
+            addPrimitive(index, f.getName(), MANGLE_CONSTANT_PREFIX, PRIM_CONSTANT);
+        for (Method m : metaMapMethods(map)) {
+            addPrimitive(index, m.getName(), MANGLE_GLOBAL_FUNCTION_PREFIX, PRIM_GLOBAL_FUNCTION);
+            addPrimitive(index, m.getName(), MANGLE_ENGINE_FUNCTION_PREFIX, PRIM_ENGINE_FUNCTION);
+        }
+        return index;
+    }
+    private static void addPrimitive(Map<String, String[]> index, String member,
+                                     String prefix, int slot) {
+        if (!member.startsWith(prefix))  return;
+        String mang = member.substring(prefix.length());
+        String name = demangle(mang);
+        if (!mang.equals(mangle(name)))  return;
+        String[] prim = index.get(name);
+        if (prim == null)  index.put(name, prim = new String[3]);
+        prim[slot] = member;
+    }
+    // inverse of mangle, except for hex escapes
+    private static String demangle(String mang) {
+        StringBuilder s = new StringBuilder(mang.length());
+        for (int len = mang.length(), i = 0; i < len; i++) {
+            char c = mang.charAt(i);
+            if (c == '_') {
+                s.append('-');
+                continue;
+            }
+            if (c == 'U' && i+1 < len) {
+                s.append(Character.toUpperCase(mang.charAt(++i)));
+                continue;
+            }
+            int cindex = MANGLE_CHARS.indexOf(c);
+            if (cindex >= 0 && (cindex & 1) == 0) {
+                s.append(MANGLE_CHARS.charAt(cindex+1));
+                continue;
+            }
+            s.append(c);
+        }
+        return s.toString();
+    }
     //  also: "_-X0Ua": X hex, U upper
     private static String mangle(String s) {
         StringBuilder mang = new StringBuilder(8 + s.length());
@@ -1722,15 +4146,736 @@ class SIOC {
 
     // Functions
     private static Object SF_list(Object x, Object y) {
-        return Arrays.asList(x, y);
+        return Pair.cons(x, Pair.cons(y, EMPTY_LIST));
     }
     private static Object SF_list(Object... xs) {
-        return Arrays.asList(xs);
+        return Pair.fromArray(xs, EMPTY_LIST, true);
     }
     private static Object SF_list_tail(Object x, int n) {
-        List ls = (List) x;
-        return ls.subList(n, ls.size());
+        return Pair.drop(toList(x), n);
+    }
+    private static Object SF_cons(Object x, Object y) {
+        return Pair.cons(x, y);
+    }
+    private static Object SF_car(Object x) {
+        if (x instanceof Pair)  return ((Pair)x).car();
+        return toList(x).get(0);
+    }
+    private static Object SF_cdr(Object x) {
+        if (x instanceof Pair)  return ((Pair)x).cdr();
+        return Pair.drop(toList(x), 1);
+    }
+    private static void SF_set_carB(Object x, Object y) {
+        toMutablePair(x).setCar(y);
+    }
+    private static void SF_set_cdrB(Object x, Object y) {
+        toMutablePair(x).setCdr(y);
+    }
+    private static boolean SF_pairQ(Object x) {
+        return x instanceof List && !((List)x).isEmpty();
+    }
+    private static boolean SF_listQ(Object x) {
+        return Pair.isList(x);
+    }
+    private static boolean SF_nullQ(Object x) {
+        return x instanceof List && ((List)x).isEmpty();
+    }
+
+    // numeric vectors, SRFI 4 style:  #f64(...) is a double[], etc.
+    private static Class<?> numericVectorType(String tag) {
+        switch (tag) {
+        case "f64":  return double.class;
+        case "s64":  return long.class;
+        case "s32":  return int.class;
+        }
+        return null;
+    }
+    private static String numericVectorTag(Object x) {
+        if (x instanceof double[])  return "f64";
+        if (x instanceof long[])    return "s64";
+        if (x instanceof int[])     return "s32";
+        return null;
+    }
+    private static Object toNumericVector(Class<?> etype, List<?> xs) {
+        int len = xs.size(), i = 0;
+        if (etype == double.class) {
+            double[] v = new double[len];
+            for (Object x : xs)  v[i++] = ((Number)x).doubleValue();
+            return v;
+        }
+        if (etype == long.class) {
+            long[] v = new long[len];
+            for (Object x : xs)  v[i++] = ((Number)x).longValue();
+            return v;
+        }
+        if (etype == int.class) {
+            int[] v = new int[len];
+            for (Object x : xs)  v[i++] = ((Number)x).intValue();
+            return v;
+        }
+        throw toRTE("bad numeric vector type: "+etype);
+    }
+    // element accessors are plain array handles, so nothing gets boxed
+    private static MethodHandle SF_Tarray_element_getter(Class<?> etype) {
+        return arrayElementGetter(Array.newInstance(etype, 0).getClass());
+    }
+    private static MethodHandle SF_Tarray_element_setter(Class<?> etype) {
+        return arrayElementSetter(Array.newInstance(etype, 0).getClass());
+    }
+    private static double[] SF_make_f64vector(int n) { return new double[n]; }
+    private static long[]   SF_make_s64vector(int n) { return new long[n]; }
+    private static int[]    SF_make_s32vector(int n) { return new int[n]; }
+    private static double[] SF_make_f64vector(int n, double x) { double[] v = new double[n]; Arrays.fill(v, x); return v; }
+    private static long[]   SF_make_s64vector(int n, long x)   { long[] v = new long[n]; Arrays.fill(v, x); return v; }
+    private static int[]    SF_make_s32vector(int n, int x)    { int[] v = new int[n]; Arrays.fill(v, x); return v; }
+    private static Object SF_f64vector(Object... xs) { return toNumericVector(double.class, Arrays.asList(xs)); }
+    private static Object SF_s64vector(Object... xs) { return toNumericVector(long.class, Arrays.asList(xs)); }
+    private static Object SF_s32vector(Object... xs) { return toNumericVector(int.class, Arrays.asList(xs)); }
+    private static boolean SF_f64vectorQ(Object x) { return x instanceof double[]; }
+    private static boolean SF_s64vectorQ(Object x) { return x instanceof long[]; }
+    private static boolean SF_s32vectorQ(Object x) { return x instanceof int[]; }
+    private static int SF_f64vector_length(double[] v) { return v.length; }
+    private static int SF_s64vector_length(long[] v)   { return v.length; }
+    private static int SF_s32vector_length(int[] v)    { return v.length; }
+    private static Object SF_list_Gf64vector(Object x) { return toNumericVector(double.class, toList(x)); }
+    private static Object SF_list_Gs64vector(Object x) { return toNumericVector(long.class, toList(x)); }
+    private static Object SF_list_Gs32vector(Object x) { return toNumericVector(int.class, toList(x)); }
+    private static Object SF_f64vector_Glist(double[] v) {
+        List<Object> xs = EMPTY_LIST;
+        for (int i = v.length; --i >= 0; )  xs = Pair.cons(v[i], xs);
+        return xs;
+    }
+    private static Object SF_s64vector_Glist(long[] v) {
+        List<Object> xs = EMPTY_LIST;
+        for (int i = v.length; --i >= 0; )  xs = Pair.cons(v[i], xs);
+        return xs;
+    }
+    private static Object SF_s32vector_Glist(int[] v) {
+        List<Object> xs = EMPTY_LIST;
+        for (int i = v.length; --i >= 0; )  xs = Pair.cons(v[i], xs);
+        return xs;
+    }
+
+    // par-map, par-for-each and par-reduce run a procedure over a list,
+    // an Object[] or a numeric vector on a ForkJoinPool (see ParTask).
+    // Results keep input order, and par-map returns the same kind of
+    // sequence it was given.  par-reduce needs an associative procedure;
+    // init is combined once, on the left.  The pool has -Dsioc.parallelism
+    // threads (default: one per core); nested calls join the current pool.
+    // Each worker gets about four chunks, however short the input, so
+    // slow procedures over short lists still spread out.  For cheap
+    // procedures over long inputs, -Dsioc.par.chunk sets a floor on
+    // the chunk size; inputs no longer than the floor run inline.
+    private static final int PAR_MIN_CHUNK = Math.max(1, Integer.getInteger("sioc.par.chunk", 1));
+    private static ForkJoinPool parPool;
+    private static synchronized ForkJoinPool parPool() {
+        if (parPool == null) {
+            int n = Integer.getInteger("sioc.parallelism", Runtime.getRuntime().availableProcessors());
+            parPool = new ForkJoinPool(Math.max(1, n));
+        }
+        return parPool;
+    }
+    private static Object SF_par_map(MethodHandle f, Object xs) throws Throwable {
+        Object[] in = parElements(xs);
+        Object[] out = new Object[in.length];
+        parRun(new ParTask(genericProc(f, 1), in, out, 0, in.length, parChunk(in.length)));
+        if (xs instanceof Object[])  return out;
+        if (xs instanceof List)  return Pair.fromArray(out, EMPTY_LIST, true);
+        return toNumericVector(xs.getClass().getComponentType(), Arrays.asList(out));
+    }
+    private static void SF_par_for_each(MethodHandle f, Object xs) throws Throwable {
+        Object[] in = parElements(xs);
+        parRun(new ParTask(genericProc(f, 1), in, new Object[in.length], 0, in.length, parChunk(in.length)));
+    }
+    private static Object SF_par_reduce(MethodHandle f, Object init, Object xs) throws Throwable {
+        Object[] in = parElements(xs);
+        if (in.length == 0)  return init;
+        MethodHandle f2 = genericProc(f, 2);
+        Object x = parRun(new ParTask(f2, in, null, 0, in.length, parChunk(in.length)));
+        return (Object) f2.invokeExact(init, x);
+    }
+    private static Object[] parElements(Object xs) {
+        if (xs instanceof Object[])  return (Object[]) xs;
+        if (xs instanceof List)  return ((List<?>) xs).toArray();
+        if (xs instanceof double[] || xs instanceof long[] || xs instanceof int[]) {
+            Object[] v = new Object[Array.getLength(xs)];
+            for (int i = 0; i < v.length; i++)  v[i] = Array.get(xs, i);
+            return v;
+        }
+        throw toRTE("not a list or vector: "+SF_display_to_string(xs));
+    }
+    private static MethodHandle genericProc(MethodHandle mh, int argc) {
+        return mh.asType(genericMethodType(argc));
+    }
+    private static int parChunk(int n) {
+        // about four chunks per worker, so that uneven chunks still balance
+        int chunks = parPool().getParallelism() * 4;
+        return Math.max(PAR_MIN_CHUNK, (n + chunks - 1) / chunks);
+    }
+    private static Object parRun(ParTask task) throws Throwable {
+        try {
+            if (task.isLeaf())  return task.compute();
+            if (ForkJoinTask.inForkJoinPool())  return task.invoke();
+            return parPool().invoke(task);
+        } catch (RuntimeException | Error ex) {
+            throw parFailure(ex);
+        }
+    }
+    // A join from another thread rethrows a copy which wraps the original,
+    // and ParTask wraps checked exceptions in an UndeclaredThrowableException,
+    // so a checked failure can arrive as a UTE wrapping a UTE.
+    private static Throwable parFailure(Throwable ex) {
+        for (;;) {
+            Throwable cause = ex.getCause();
+            if (cause == null)  return ex;
+            if (ex instanceof UndeclaredThrowableException || cause.getClass() == ex.getClass())
+                ex = cause;
+            else
+                return ex;
+        }
     }
+
+    // spawn runs a thunk on a daemon thread from a shared cached pool and
+    // returns its Future; touch waits for a future and returns its value,
+    // rethrowing what the thunk threw (anything else touches to itself).
+    // Channels are bounded queues (class Channel).  channel-close! marks
+    // the channel closed without blocking, after which channel-put! is an
+    // error, even for a writer already waiting for room, and channel-get
+    // returns #!end-of-file, to every reader, once the items already
+    // queued are gone.
+    // with-task-scope calls a thunk, then waits for every task spawned
+    // while it ran, including tasks spawned by those tasks.  Tasks are
+    // joined as they finish, so when the thunk or any task fails, the
+    // tasks still running are cancelled (interrupted) at once, and the
+    // first failure is rethrown once they have all stopped.  A cancelled
+    // scope spawns nothing more, and its tasks which have not started
+    // never will.
+    // A scope is {tasks, completion service, running count, cancelled};
+    // the tasks list is its lock.  TASK_SCOPE is the current one.
+    private static final int
+        TASKS_LIST = 0, TASKS_DONE = 1, TASKS_RUNNING = 2, TASKS_CANCELLED = 3, TASKS_COUNT = 4;
+    private static final ThreadLocal<Object[]> TASK_SCOPE = new ThreadLocal<>();
+    private static final AtomicInteger TASK_COUNT = new AtomicInteger();
+    private static ExecutorService taskPool;
+    private static synchronized ExecutorService taskPool() {
+        if (taskPool == null) {
+            ThreadFactory tf = asInstance(MH_newTaskThread, ThreadFactory.class);
+            taskPool = Executors.newCachedThreadPool(tf);
+        }
+        return taskPool;
+    }
+    private static Thread newTaskThread(Runnable r) {
+        Thread t = new Thread(r, "sioc-task-"+TASK_COUNT.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+    private static Future<Object> SF_spawn(MethodHandle thunk) {
+        Object[] scope = TASK_SCOPE.get();
+        MethodHandle body = insertArguments(MH_runTask, 0, thunk, scope);
+        Callable<Object> task = asInstance(body, Callable.class);
+        if (scope == null)  return taskPool().submit(task);
+        List<Future<Object>> tasks = (List<Future<Object>>) scope[TASKS_LIST];
+        synchronized (tasks) {
+            if (scope[TASKS_CANCELLED] != null)  throw new CancellationException("task scope cancelled");
+            Future<Object> f = ((CompletionService<Object>) scope[TASKS_DONE]).submit(task);
+            tasks.add(f);
+            return f;
+        }
+    }
+    private static Object runTask(MethodHandle thunk, Object[] scope) throws Throwable {
+        if (scope == null)  return thunk.invokeWithArguments();
+        List<?> tasks = (List<?>) scope[TASKS_LIST];
+        synchronized (tasks) {
+            if (scope[TASKS_CANCELLED] != null)  return null;  // cancelled before it started
+            scope[TASKS_RUNNING] = (Integer) scope[TASKS_RUNNING] + 1;
+        }
+        TASK_SCOPE.set(scope);  // children of a scoped task join the same scope
+        try {
+            return thunk.invokeWithArguments();
+        } finally {
+            TASK_SCOPE.remove();
+            synchronized (tasks) {
+                scope[TASKS_RUNNING] = (Integer) scope[TASKS_RUNNING] - 1;
+                tasks.notifyAll();
+            }
+        }
+    }
+    private static Object SF_touch(Object x) throws Throwable {
+        if (!(x instanceof Future))  return x;
+        try {
+            return ((Future<?>) x).get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause();
+        }
+    }
+    private static boolean SF_futureQ(Object x) { return x instanceof Future; }
+    private static Object SF_with_task_scope(MethodHandle thunk) throws Throwable {
+        Object[] outer = TASK_SCOPE.get();
+        List<Future<Object>> tasks = new ArrayList<>();
+        CompletionService<Object> done = new ExecutorCompletionService<>(taskPool());
+        Object[] scope = new Object[TASKS_COUNT];
+        scope[TASKS_LIST] = tasks;
+        scope[TASKS_DONE] = done;
+        scope[TASKS_RUNNING] = 0;
+        TASK_SCOPE.set(scope);
+        try {
+            Object result = thunk.invokeWithArguments();
+            for (int joined = 0; ; joined++) {
+                synchronized (tasks) {
+                    // a task adds its children before it completes
+                    if (joined == tasks.size())  break;
+                }
+                SF_touch(done.take());
+            }
+            return result;
+        } catch (Throwable ex) {
+            synchronized (tasks) {
+                scope[TASKS_CANCELLED] = true;
+                for (Future<Object> f : tasks)  f.cancel(true);
+                // wait for the interrupted tasks to unwind
+                boolean interrupted = false;
+                while ((Integer) scope[TASKS_RUNNING] > 0) {
+                    try {
+                        tasks.wait();
+                    } catch (InterruptedException ie) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)  Thread.currentThread().interrupt();
+            }
+            throw ex;
+        } finally {
+            TASK_SCOPE.set(outer);
+        }
+    }
+    private static Channel SF_make_channel() { return new Channel(1); }
+    private static Channel SF_make_channel(int capacity) { return new Channel(capacity); }
+    private static boolean SF_channelQ(Object x) { return x instanceof Channel; }
+    private static void SF_channel_putB(Channel ch, Object x) throws InterruptedException {
+        if (!ch.put(x))  throw toRTE("channel is closed");
+    }
+    private static Object SF_channel_get(Channel ch) throws InterruptedException {
+        return ch.take(K_HBend_of_file);
+    }
+    private static void SF_channel_closeB(Channel ch) {
+        ch.close();
+    }
+
+    // (call/ec proc) calls proc with an escape procedure, which returns
+    // its argument from the call/ec when called.  The escape is one
+    // preallocated stackless Escape, so exiting costs no stack walk.
+    // It only works during the call/ec and in the same thread.
+    private static Object SF_callDec(MethodHandle proc) throws Throwable {
+        Escape k = new Escape();
+        try {
+            return proc.invokeWithArguments(MH_escape.bindTo(k));
+        } catch (Escape ex) {
+            if (ex != k)  throw ex;
+            return ex.value;
+        } finally {
+            k.live = false;
+        }
+    }
+    private static Object escape(Escape k, Object x) {
+        if (!k.live)  throw toRTE("escape procedure called after its call/ec returned");
+        k.value = x;
+        throw k;
+    }
+
+    // (memoize f [limit [ttl-ms [policy]]]) returns a procedure of the same
+    // arity that caches f's results by argument (see Memo).  The limit
+    // defaults to -Dsioc.memo.limit (1024), and 0 means unbounded.  A ttl
+    // of 0 means entries never expire.  The policy is lru (the default)
+    // or fifo.  memo-stats and memo-clear! take the memoized procedure.
+    private static final int MEMO_LIMIT = Integer.getInteger("sioc.memo.limit", 1024);
+    private static MethodHandle SF_memoize(MethodHandle f) {
+        return Memo.memoize(f, MEMO_LIMIT, 0, true);
+    }
+    private static MethodHandle SF_memoize(MethodHandle f, int limit) {
+        return Memo.memoize(f, limit, 0, true);
+    }
+    private static MethodHandle SF_memoize(MethodHandle f, int limit, int ttl) {
+        return Memo.memoize(f, limit, ttl, true);
+    }
+    private static MethodHandle SF_memoize(MethodHandle f, int limit, int ttl, Object policy) {
+        switch (stringOrSymbol(policy)) {
+        case "lru":   return Memo.memoize(f, limit, ttl, true);
+        case "fifo":  return Memo.memoize(f, limit, ttl, false);
+        }
+        throw toRTE("memoize: unknown policy: "+policy);
+    }
+    private static Map<String, Long> SF_memo_stats(MethodHandle f) {
+        return toMemo(f).stats();
+    }
+    private static void SF_memo_clearB(MethodHandle f) {
+        toMemo(f).clear();
+    }
+    private static Memo toMemo(MethodHandle f) {
+        Memo memo = Memo.of(f);
+        if (memo == null)  throw toRTE("not a memoized procedure: "+SF_display_to_string(f));
+        return memo;
+    }
+
+    // Lazy sequences (see Seq).  seq-map, seq-filter and seq-take only add
+    // a stage; seq-fold, seq->list and seq-for-each run every stage in one
+    // pass.  Each of these also takes a plain list or vector as its sequence.
+    private static Seq SF_seq(Object xs) { return toSeq(xs); }
+    private static boolean SF_seqQ(Object x) { return x instanceof Seq; }
+    private static Seq SF_seq_range(int start) { return Seq.range(start, null); }
+    private static Seq SF_seq_range(int start, int end) { return Seq.range(start, end); }
+    private static Seq SF_seq_iterate(MethodHandle f, Object x) { return Seq.iterate(genericProc(f, 1), x); }
+    private static Seq SF_seq_map(MethodHandle f, Object xs) { return toSeq(xs).map(genericProc(f, 1)); }
+    private static Seq SF_seq_filter(MethodHandle f, Object xs) { return toSeq(xs).filter(genericProc(f, 1)); }
+    private static Seq SF_seq_take(int n, Object xs) { return toSeq(xs).take(n); }
+    private static Object SF_seq_fold(MethodHandle f, Object init, Object xs) throws Throwable {
+        try {
+            return toSeq(xs).fold(genericProc(f, 2), init);
+        } catch (UndeclaredThrowableException ex) {
+            throw ex.getCause();
+        }
+    }
+    private static Object SF_seq_Glist(Object xs) throws Throwable {
+        List<Object> buf = new ArrayList<>();
+        try {
+            for (Object x : toSeq(xs))  buf.add(x);
+        } catch (UndeclaredThrowableException ex) {
+            throw ex.getCause();
+        }
+        return Pair.fromList(buf, EMPTY_LIST, true);
+    }
+    private static void SF_seq_for_each(MethodHandle f, Object xs) throws Throwable {
+        MethodHandle f1 = genericProc(f, 1);
+        try {
+            for (Object x : toSeq(xs)) {
+                Object ignore = (Object) f1.invokeExact(x);
+            }
+        } catch (UndeclaredThrowableException ex) {
+            throw ex.getCause();
+        }
+    }
+    private static Seq toSeq(Object xs) {
+        Seq seq = Seq.of(xs);
+        if (seq == null)  throw toRTE("not a sequence: "+SF_display_to_string(xs));
+        return seq;
+    }
+
+    // bytevectors are ByteBuffers, heap or direct, indexed absolutely from 0 to limit
+    private static ByteBuffer SF_make_bytevector(int n) { return ByteBuffer.allocate(n); }
+    private static ByteBuffer SF_make_bytevector(int n, int x) {
+        byte[] bytes = new byte[n];
+        Arrays.fill(bytes, (byte) x);
+        return ByteBuffer.wrap(bytes);
+    }
+    private static ByteBuffer SF_make_direct_bytevector(int n) { return ByteBuffer.allocateDirect(n); }
+    private static boolean SF_bytevectorQ(Object x) { return x instanceof ByteBuffer; }
+    private static int SF_bytevector_length(ByteBuffer bv) { return bv.limit(); }
+    private static int  SF_bytevector_u8_ref(ByteBuffer bv, int i) { return bv.get(i) & 0xFF; }
+    private static int  SF_bytevector_s8_ref(ByteBuffer bv, int i) { return bv.get(i); }
+    private static int  SF_bytevector_s16_ref(ByteBuffer bv, int i) { return bv.getShort(i); }
+    private static int  SF_bytevector_s32_ref(ByteBuffer bv, int i) { return bv.getInt(i); }
+    private static long SF_bytevector_s64_ref(ByteBuffer bv, int i) { return bv.getLong(i); }
+    private static double SF_bytevector_f32_ref(ByteBuffer bv, int i) { return bv.getFloat(i); }
+    private static double SF_bytevector_f64_ref(ByteBuffer bv, int i) { return bv.getDouble(i); }
+    private static void SF_bytevector_u8_setB(ByteBuffer bv, int i, int x) { bv.put(i, (byte) x); }
+    private static void SF_bytevector_s16_setB(ByteBuffer bv, int i, int x) { bv.putShort(i, (short) x); }
+    private static void SF_bytevector_s32_setB(ByteBuffer bv, int i, int x) { bv.putInt(i, x); }
+    private static void SF_bytevector_s64_setB(ByteBuffer bv, int i, long x) { bv.putLong(i, x); }
+    private static void SF_bytevector_f32_setB(ByteBuffer bv, int i, double x) { bv.putFloat(i, (float) x); }
+    private static void SF_bytevector_f64_setB(ByteBuffer bv, int i, double x) { bv.putDouble(i, x); }
+    private static ByteBuffer SF_bytevector_slice(ByteBuffer bv, int start, int end) {
+        // shares storage with bv; no bytes are copied
+        ByteBuffer dup = bv.duplicate();
+        dup.limit(end).position(start);
+        return dup.slice().order(bv.order());
+    }
+    private static ByteBuffer SF_bytevector_slice(ByteBuffer bv, int start) {
+        return SF_bytevector_slice(bv, start, bv.limit());
+    }
+    private static ByteBuffer SF_bytevector_little_endian(ByteBuffer bv) {
+        return bv.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+    private static ByteBuffer SF_bytevector_big_endian(ByteBuffer bv) {
+        return bv.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+    private static ByteBuffer SF_bytevector_copy(ByteBuffer bv) {
+        ByteBuffer copy = ByteBuffer.allocate(bv.limit()).order(bv.order());
+        ByteBuffer dup = bv.duplicate();
+        dup.position(0);
+        copy.put(dup).position(0);
+        return copy;
+    }
+    private static ByteBuffer SF_list_Gbytevector(Object x) {
+        List<Object> xs = toList(x);
+        byte[] bytes = new byte[xs.size()];
+        int i = 0;
+        for (Object x1 : xs)  bytes[i++] = ((Number)x1).byteValue();
+        return ByteBuffer.wrap(bytes);
+    }
+    private static Object SF_bytevector_Glist(ByteBuffer bv) {
+        List<Object> xs = EMPTY_LIST;
+        for (int i = bv.limit(); --i >= 0; )  xs = Pair.cons(bv.get(i) & 0xFF, xs);
+        return xs;
+    }
+    private static ByteBuffer SF_bytevector_map_file(Object name) throws IOException {
+        return SF_bytevector_map_file(name, false);
+    }
+    private static ByteBuffer SF_bytevector_map_file(Object name, boolean writable) throws IOException {
+        File file = new File(stringOrSymbol(name));
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        try (FileChannel ch = writable
+                 ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                 : FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return ch.map(mode, 0, ch.size());
+        }
+    }
+
+    // hash tables are plain HashMaps; keys compare with equals
+    private static Map<Object,Object> SF_make_hash_table() { return new HashMap<>(); }
+    private static Map<Object,Object> SF_make_hash_table(int n) { return new HashMap<>(n); }
+    private static boolean SF_hash_tableQ(Object x) { return x instanceof Map; }
+    private static Object SF_hash_table_ref(Map<Object,Object> t, Object key) {
+        Object x = t.get(key);
+        if (x == null && !t.containsKey(key))
+            throw toRTE("no such key: "+SF_print_to_string(key));
+        return x;
+    }
+    private static Object SF_hash_table_ref(Map<Object,Object> t, Object key, MethodHandle thunk) throws Throwable {
+        Object x = t.get(key);
+        if (x == null && !t.containsKey(key))
+            return thunk.invokeWithArguments();
+        return x;
+    }
+    private static Object SF_hash_table_refDdefault(Map<Object,Object> t, Object key, Object dflt) {
+        Object x = t.get(key);
+        if (x == null && !t.containsKey(key))  return dflt;
+        return x;
+    }
+    private static void SF_hash_table_setB(Map<Object,Object> t, Object key, Object x) { t.put(key, x); }
+    private static void SF_hash_table_deleteB(Map<Object,Object> t, Object key) { t.remove(key); }
+    private static void SF_hash_table_clearB(Map<Object,Object> t) { t.clear(); }
+    private static boolean SF_hash_table_containsQ(Map<Object,Object> t, Object key) { return t.containsKey(key); }
+    private static int SF_hash_table_count(Map<Object,Object> t) { return t.size(); }
+    private static void SF_hash_table_updateBDdefault(Map<Object,Object> t, Object key,
+                                                      MethodHandle f, Object dflt) throws Throwable {
+        Object x = t.get(key);
+        if (x == null && !t.containsKey(key))  x = dflt;
+        t.put(key, f.invokeWithArguments(x));
+    }
+    private static Object SF_hash_table_keys(Map<Object,Object> t) {
+        return Pair.fromList(new ArrayList<>(t.keySet()), EMPTY_LIST, true);
+    }
+    private static Object SF_hash_table_values(Map<Object,Object> t) {
+        return Pair.fromList(new ArrayList<>(t.values()), EMPTY_LIST, true);
+    }
+    private static Object SF_hash_table_Galist(Map<Object,Object> t) {
+        List<Object> xs = EMPTY_LIST;
+        for (Map.Entry<Object,Object> e : t.entrySet())
+            xs = Pair.cons(SF_cons(e.getKey(), e.getValue()), xs);
+        return xs;
+    }
+
+    // hash maps are persistent hash array mapped tries (HAMTs).
+    // A trie node is an Object[] {bitmap, k0, v0, k1, v1, ...}, where a null
+    // key means the value is a child node.  Keys whose 32-bit hashes are
+    // identical end up in a collision node {HAMT_COLLISION, k0, v0, ...}.
+    private static final int HAMT_BITS = 5, HAMT_MASK = (1 << HAMT_BITS) - 1, HAMT_MAX_SHIFT = 30;
+    private static final Object
+        HAMT_COLLISION = special("#!collision"),
+        HAMT_NULL_KEY = special("#!null");
+    private static final Object[] HAMT_EMPTY_NODE = { 0 };
+    private static final Object EMPTY_HASH_MAP = makeHashMap(0, HAMT_EMPTY_NODE);
+
+    private static Object makeHashMap(int count, Object[] root) {
+        return new SIOC(KIND_HASH_MAP, new Object[]{ count, root });
+    }
+    private static Object[] hashMapTuple(Object x) {
+        if (SF_hash_mapQ(x))  return (Object[]) ((SIOC)x).value;
+        throw toRTE("not a hash map: "+SF_display_to_string(x));
+    }
+    private static Object hamtKey(Object key) {
+        return key == null ? HAMT_NULL_KEY : key;
+    }
+    private static Object hamtGet(Object[] node, int hash, Object key, Object dflt) {
+        for (int shift = 0; ; shift += HAMT_BITS) {
+            if (node[0] == HAMT_COLLISION) {
+                for (int i = 1; i < node.length; i += 2) {
+                    if (node[i].equals(key))  return node[i+1];
+                }
+                return dflt;
+            }
+            int bitmap = (Integer) node[0];
+            int bit = 1 << ((hash >>> shift) & HAMT_MASK);
+            if ((bitmap & bit) == 0)  return dflt;
+            int i = 1 + 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = node[i];
+            if (k != null)  return k.equals(key) ? node[i+1] : dflt;
+            node = (Object[]) node[i+1];
+        }
+    }
+    private static Object[] hamtAssoc(Object[] node, int hash, int shift,
+                                      Object key, Object val, boolean[] added) {
+        if (node[0] == HAMT_COLLISION) {
+            for (int i = 1; i < node.length; i += 2) {
+                if (!node[i].equals(key))  continue;
+                if (node[i+1] == val)  return node;
+                node = node.clone();
+                node[i+1] = val;
+                return node;
+            }
+            node = Arrays.copyOf(node, node.length + 2);
+            node[node.length-2] = key;
+            node[node.length-1] = val;
+            added[0] = true;
+            return node;
+        }
+        int bitmap = (Integer) node[0];
+        int bit = 1 << ((hash >>> shift) & HAMT_MASK);
+        int i = 1 + 2 * Integer.bitCount(bitmap & (bit - 1));
+        if ((bitmap & bit) == 0) {
+            Object[] node2 = new Object[node.length + 2];
+            System.arraycopy(node, 0, node2, 0, i);
+            System.arraycopy(node, i, node2, i+2, node.length - i);
+            node2[0] = bitmap | bit;
+            node2[i] = key;
+            node2[i+1] = val;
+            added[0] = true;
+            return node2;
+        }
+        Object k = node[i], v = node[i+1];
+        Object[] node2 = node.clone();
+        if (k == null) {
+            Object[] child = hamtAssoc((Object[]) v, hash, shift + HAMT_BITS, key, val, added);
+            if (child == v)  return node;
+            node2[i+1] = child;
+        } else if (k.equals(key)) {
+            if (v == val)  return node;
+            node2[i+1] = val;
+        } else {
+            node2[i] = null;
+            node2[i+1] = hamtPair(k.hashCode(), k, v, hash, key, val, shift + HAMT_BITS);
+            added[0] = true;
+        }
+        return node2;
+    }
+    private static Object[] hamtPair(int h1, Object k1, Object v1,
+                                     int h2, Object k2, Object v2, int shift) {
+        if (shift > HAMT_MAX_SHIFT)
+            return new Object[]{ HAMT_COLLISION, k1, v1, k2, v2 };
+        int b1 = (h1 >>> shift) & HAMT_MASK, b2 = (h2 >>> shift) & HAMT_MASK;
+        if (b1 == b2)
+            return new Object[]{ 1 << b1, null, hamtPair(h1, k1, v1, h2, k2, v2, shift + HAMT_BITS) };
+        if (b1 > b2)
+            return new Object[]{ (1 << b1) | (1 << b2), k2, v2, k1, v1 };
+        return new Object[]{ (1 << b1) | (1 << b2), k1, v1, k2, v2 };
+    }
+    // returns null if the node becomes empty
+    private static Object[] hamtDissoc(Object[] node, int hash, int shift, Object key) {
+        int i, bit = 0;
+        if (node[0] == HAMT_COLLISION) {
+            for (i = 1; i < node.length; i += 2) {
+                if (node[i].equals(key))  break;
+            }
+            if (i >= node.length)  return node;
+            if (node.length == 3)  return null;
+        } else {
+            int bitmap = (Integer) node[0];
+            bit = 1 << ((hash >>> shift) & HAMT_MASK);
+            if ((bitmap & bit) == 0)  return node;
+            i = 1 + 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = node[i];
+            if (k == null) {
+                Object[] child = (Object[]) node[i+1];
+                Object[] child2 = hamtDissoc(child, hash, shift + HAMT_BITS, key);
+                if (child2 == child)  return node;
+                if (child2 != null) {
+                    Object[] node2 = node.clone();
+                    node2[i+1] = child2;
+                    return node2;
+                }
+            } else if (!k.equals(key)) {
+                return node;
+            }
+            if (bitmap == bit)  return null;
+        }
+        Object[] node2 = new Object[node.length - 2];
+        System.arraycopy(node, 0, node2, 0, i);
+        System.arraycopy(node, i+2, node2, i, node.length - (i+2));
+        if (bit != 0)  node2[0] = (Integer) node[0] & ~bit;
+        return node2;
+    }
+    private static void hamtCollect(Object[] node, List<Object> xs, boolean keys, boolean vals) {
+        for (int i = 1; i < node.length; i += 2) {
+            Object k = node[i], v = node[i+1];
+            if (k == null && node[0] != HAMT_COLLISION) {
+                hamtCollect((Object[]) v, xs, keys, vals);
+                continue;
+            }
+            if (k == HAMT_NULL_KEY)  k = null;
+            xs.add(keys && vals ? SF_cons(k, v) : keys ? k : v);
+        }
+    }
+
+    private static boolean SF_hash_mapQ(Object x) {
+        return x instanceof SIOC && ((SIOC)x).kind == KIND_HASH_MAP;
+    }
+    private static Object SF_hash_map(Object... kvs) {
+        if (kvs.length % 2 != 0)  throw toRTE("odd number of hash-map arguments");
+        Object m = EMPTY_HASH_MAP;
+        for (int i = 0; i < kvs.length; i += 2)
+            m = SF_hash_map_set(m, kvs[i], kvs[i+1]);
+        return m;
+    }
+    private static int SF_hash_map_count(Object m) {
+        return (Integer) hashMapTuple(m)[0];
+    }
+    private static Object SF_hash_map_ref(Object m, Object key) {
+        key = hamtKey(key);
+        Object x = hamtGet((Object[]) hashMapTuple(m)[1], key.hashCode(), key, K_HBunbound);
+        if (x == K_HBunbound)  throw toRTE("no such key: "+SF_print_to_string(key));
+        return x;
+    }
+    private static Object SF_hash_map_ref(Object m, Object key, Object dflt) {
+        key = hamtKey(key);
+        return hamtGet((Object[]) hashMapTuple(m)[1], key.hashCode(), key, dflt);
+    }
+    private static boolean SF_hash_map_containsQ(Object m, Object key) {
+        key = hamtKey(key);
+        return hamtGet((Object[]) hashMapTuple(m)[1], key.hashCode(), key, K_HBunbound) != K_HBunbound;
+    }
+    private static Object SF_hash_map_set(Object m, Object key, Object val) {
+        Object[] tuple = hashMapTuple(m);
+        Object[] root = (Object[]) tuple[1];
+        key = hamtKey(key);
+        boolean[] added = {false};
+        Object[] root2 = hamtAssoc(root, key.hashCode(), 0, key, val, added);
+        if (root2 == root)  return m;
+        return makeHashMap((Integer) tuple[0] + (added[0] ? 1 : 0), root2);
+    }
+    private static Object SF_hash_map_delete(Object m, Object key) {
+        Object[] tuple = hashMapTuple(m);
+        Object[] root = (Object[]) tuple[1];
+        key = hamtKey(key);
+        Object[] root2 = hamtDissoc(root, key.hashCode(), 0, key);
+        if (root2 == root)  return m;
+        if (root2 == null)  return EMPTY_HASH_MAP;
+        return makeHashMap((Integer) tuple[0] - 1, root2);
+    }
+    private static Object SF_hash_map_keys(Object m) {
+        List<Object> xs = new ArrayList<>();
+        hamtCollect((Object[]) hashMapTuple(m)[1], xs, true, false);
+        return Pair.fromList(xs, EMPTY_LIST, true);
+    }
+    private static Object SF_hash_map_values(Object m) {
+        List<Object> xs = new ArrayList<>();
+        hamtCollect((Object[]) hashMapTuple(m)[1], xs, false, true);
+        return Pair.fromList(xs, EMPTY_LIST, true);
+    }
+    private static Object SF_hash_map_Galist(Object m) {
+        List<Object> xs = new ArrayList<>();
+        hamtCollect((Object[]) hashMapTuple(m)[1], xs, true, true);
+        return Pair.fromList(xs, EMPTY_LIST, true);
+    }
+
     private static String SF_symbol_Gstring(Object x) {
         return ((SIOC)x).toString();
     }
@@ -1746,6 +4891,14 @@ class SIOC {
     private static boolean SF_procedureQ(Object x) {
         return x instanceof MethodHandle;
     }
+    // (as-instance proc java.lang.Runnable) for passing procedures to Java
+    private static Object SF_as_instance(MethodHandle mh, Class<?> samType) {
+        try {
+            return asInstance(mh, samType);
+        } catch (IllegalArgumentException ex) {
+            throw toRTE("as-instance: "+ex.getMessage());
+        }
+    }
     private static String stringOrSymbol(Object x) {
         if (SF_symbolQ(x) || SF_stringQ(x))
             return x.toString();
@@ -1768,6 +4921,21 @@ class SIOC {
     private static double SF__(          double y) { return   - y; }
     private static double SF_S(double x, double y) { return x * y; }
     private static double SF_D(double x, double y) { return x / y; }
+    private static boolean SF_E(int x, int y) { return x == y; }
+    private static boolean SF_L(int x, int y) { return x < y; }
+    private static boolean SF_G(int x, int y) { return x > y; }
+    private static boolean SF_LE(int x, int y) { return x <= y; }
+    private static boolean SF_GE(int x, int y) { return x >= y; }
+    private static boolean SF_E(long x, long y) { return x == y; }
+    private static boolean SF_L(long x, long y) { return x < y; }
+    private static boolean SF_G(long x, long y) { return x > y; }
+    private static boolean SF_LE(long x, long y) { return x <= y; }
+    private static boolean SF_GE(long x, long y) { return x >= y; }
+    private static boolean SF_E(double x, double y) { return x == y; }
+    private static boolean SF_L(double x, double y) { return x < y; }
+    private static boolean SF_G(double x, double y) { return x > y; }
+    private static boolean SF_LE(double x, double y) { return x <= y; }
+    private static boolean SF_GE(double x, double y) { return x >= y; }
     
     private static MethodHandle SF_Tbind_left(MethodHandle f, Object x) {
         return bindCarefully(f, x);
@@ -1793,17 +4961,38 @@ class SIOC {
             return (MethodHandle) x;
         throw toRTE("not a procedure: "+x);
     }
+    private static List<Object> toList(Object x) {
+        if (x instanceof List)
+            return (List<Object>) x;
+        throw toRTE("not a list: "+SF_display_to_string(x));
+    }
+    private static Pair toMutablePair(Object x) {
+        if (x instanceof Pair && ((Pair)x).isMutable())
+            return (Pair) x;
+        throw toRTE("not a mutable pair: "+SF_display_to_string(x));
+    }
     private Reader toReader(Object x) {
         if (x instanceof InputStream)
             return new InputStreamReader((InputStream)x);
         return (Reader) x;
     }
-    private Writer toWriter(Object x) {
-        if (x instanceof OutputStream)
-            return new PrintWriter((OutputStream)x, true);
+    private Writer toWriter(Object x) throws IOException {
+        if (x instanceof OutputStream) {
+            // one port per stream, so buffered output is never stranded
+            synchronized (OUTPUT_PORTS) {
+                Writer port = OUTPUT_PORTS.get(x);
+                if (port == null) {
+                    Writer sink = new OutputStreamWriter(new PortSink((OutputStream) x));
+                    OUTPUT_PORTS.put((OutputStream) x, port = bufferedPort(sink, DEFAULT_PORT_BUFFER_SIZE));
+                }
+                return port;
+            }
+        }
         return (Writer) x;
     }
+    private static boolean stacklessErrors = Boolean.getBoolean("sioc.stackless");
     private static RuntimeException toRTE(String x) {
+        if (stacklessErrors)  return new StacklessException(x);
         return new RuntimeException(x);
     }
     private static InternalError toIE(String x, Throwable ex) {
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2010, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+
+package sioc;
+
+import java.util.Map;
+
+/* Interpreter cache counters, registered as sioc:type=CacheStats.
+ * Counts are global to the class loader, not per interpreter.
+ * Entry counts and bytes are gauges of what is still live (global
+ * entries are every binding of every live interpreter); the rest
+ * count slow-path events since the last resetCounters.  ApproximateBytes is an estimate
+ * from fixed per-entry sizes, good for trends rather than totals.
+ * The implementation is a proxy over SIOC.statsInvoke.
+ */
+public interface SIOCStatsMXBean {
+    long getMetaMaps();
+    long getMetaMembers();
+    long getFunctionEntries();
+    long getConstantEntries();
+    long getGlobalEntries();
+    long getApproximateBytes();
+
+    long getFunctionHits();
+    long getFunctionMisses();
+    long getFunctionNegative();
+    long getFunctionEvictions();
+    long getConstantHits();
+    long getConstantMisses();
+    long getConstantEvictions();
+    long getGlobalMisses();
+
+    long getArityHandles();
+    long getOverloadHandles();
+
+    /** All of the above, by attribute name. */
+    Map<String, Long> getCounters();
+    void resetCounters();
+}
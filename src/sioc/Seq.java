@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2010, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sioc;
+
+import java.dyn.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.*;
+
+/* A lazy sequence: a source plus a chain of map, filter and take stages.
+ * Adding a stage copies only the short stage arrays; nothing is read
+ * until the sequence is iterated.  The iterator pushes each source
+ * element through all the stages before reading the next one, so a
+ * pipeline makes one pass and builds no intermediate lists.  A take
+ * stops reading the source as soon as its count is reached, so the
+ * source may be infinite.  Stage functions have generic types, that
+ * is (Object)Object.  A sequence can be iterated any number of times,
+ * and each time the stages are run again.
+ */
+final class Seq implements Iterable<Object> {
+    static final int MAP = 0, FILTER = 1, TAKE = 2;
+
+    private final Iterable<?> source;
+    private final int[] ops;
+    private final Object[] args;  // MethodHandle, or Integer for TAKE
+
+    private Seq(Iterable<?> source, int[] ops, Object[] args) {
+        this.source = source;
+        this.ops = ops;
+        this.args = args;
+    }
+
+    /** Wrap a List, other Iterable, or array; return null for anything else. */
+    static Seq of(Object xs) {
+        if (xs instanceof Seq)  return (Seq) xs;
+        Iterable<?> source = null;
+        if (xs instanceof Iterable)
+            source = (Iterable<?>) xs;
+        else if (xs instanceof Object[])
+            source = Arrays.asList((Object[]) xs);
+        else if (xs != null && xs.getClass().isArray())
+            source = arrayList(xs);
+        if (source == null)  return null;
+        return new Seq(source, new int[0], new Object[0]);
+    }
+    private static List<Object> arrayList(final Object array) {
+        return new AbstractList<Object>() {
+            public Object get(int i) { return Array.get(array, i); }
+            public int size() { return Array.getLength(array); }
+        };
+    }
+
+    /** The integers from start up to (not including) end, or without end if end is null. */
+    static Seq range(final int start, final Integer end) {
+        return new Seq(new Iterable<Object>() {
+            public Iterator<Object> iterator() {
+                return new Iterator<Object>() {
+                    int next = start;
+                    public boolean hasNext() { return end == null || next < end; }
+                    public Object next() {
+                        if (!hasNext())  throw new NoSuchElementException();
+                        return next++;
+                    }
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        }, new int[0], new Object[0]);
+    }
+
+    /** The infinite sequence x, f(x), f(f(x)), ...  Each f call waits until its value is needed. */
+    static Seq iterate(final MethodHandle f, final Object x) {
+        return new Seq(new Iterable<Object>() {
+            public Iterator<Object> iterator() {
+                return new Iterator<Object>() {
+                    Object last;
+                    boolean started;
+                    public boolean hasNext() { return true; }
+                    public Object next() {
+                        last = started ? call(f, last) : x;
+                        started = true;
+                        return last;
+                    }
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        }, new int[0], new Object[0]);
+    }
+
+    Seq map(MethodHandle f)     { return with(MAP, f); }
+    Seq filter(MethodHandle f)  { return with(FILTER, f); }
+    Seq take(int n)             { return with(TAKE, n); }
+
+    private Seq with(int op, Object arg) {
+        int n = ops.length;
+        int[] ops1 = Arrays.copyOf(ops, n+1);
+        Object[] args1 = Arrays.copyOf(args, n+1);
+        ops1[n] = op;
+        args1[n] = arg;
+        return new Seq(source, ops1, args1);
+    }
+
+    /** Fold f over the elements, left to right, in the same single pass. */
+    Object fold(MethodHandle f, Object acc) throws Throwable {
+        for (Object x : this)
+            acc = (Object) f.invokeExact(acc, x);
+        return acc;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Cursor();
+    }
+
+    @Override
+    public String toString() {
+        return "#<seq>";
+    }
+
+    private static Object call(MethodHandle f, Object x) {
+        try {
+            return (Object) f.invokeExact(x);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new UndeclaredThrowableException(ex);
+        }
+    }
+
+    private final class Cursor implements Iterator<Object> {
+        private final Iterator<?> in = source.iterator();
+        private final int[] taken = new int[ops.length];
+        private Object next;
+        private boolean ready, stopped;
+
+        public boolean hasNext() {
+            if (!ready && !stopped)  advance();
+            return ready;
+        }
+        public Object next() {
+            if (!hasNext())  throw new NoSuchElementException();
+            ready = false;
+            Object x = next;
+            next = null;
+            return x;
+        }
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        // run one source element at a time through the stages until one gets out
+        private void advance() {
+            for (int i = 0; i < ops.length; i++) {
+                if (ops[i] == TAKE && (Integer) args[i] <= 0) {
+                    stopped = true;  // take 0: do not read the source at all
+                    return;
+                }
+            }
+        scan:
+            while (in.hasNext()) {
+                Object x = in.next();
+                boolean last = false;  // some take stage just reached its count
+                for (int i = 0; i < ops.length; i++) {
+                    switch (ops[i]) {
+                    case MAP:
+                        x = call((MethodHandle) args[i], x);
+                        break;
+                    case FILTER:
+                        if (Boolean.FALSE.equals(call((MethodHandle) args[i], x))) {
+                            if (last)  break scan;
+                            continue scan;
+                        }
+                        break;
+                    case TAKE:
+                        if (++taken[i] == (Integer) args[i])  last = true;
+                        break;
+                    }
+                }
+                next = x;
+                ready = true;
+                stopped = last;
+                return;
+            }
+            stopped = true;
+        }
+    }
+}
@@ -26,25 +26,183 @@
 package sioc;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.lang.reflect.*;
 import java.dyn.*;
 import static java.dyn.MethodType.*;
+import static java.dyn.MethodHandles.*;
 import java.dyn.MethodHandles.AsInstanceObject;
 
 /* workarounds for current bugs in JSR 292
  */
 class Workarounds {
-    /* 6983726 remove Proxy from MethodHandles.asInstance SAM conversion */
+    /* 6983726 remove Proxy from MethodHandles.asInstance SAM conversion
+     * Each (interface, handle type) pair gets a maker handle, built once
+     * and cached, which turns a target into an instance.  Only the five
+     * interfaces with a hand-written wrapper below (Runnable, Callable,
+     * Comparator, ClassValue, InvocationHandler) get a real class whose
+     * method calls invokeExact on the pre-adapted target.  Any other
+     * single-method interface gets a Proxy, but its class, constructor
+     * and method are still looked up only once per pair.
+     */
     public static
     <T> T asInstance(final MethodHandle target, Class<T> samType) {
+        List<Object> key = Arrays.<Object>asList(samType, target.type());
+        MethodHandle maker = MAKERS.get(key);
+        if (maker == null) {
+            maker = makeMaker(samType, target.type());
+            MethodHandle prev = MAKERS.putIfAbsent(key, maker);
+            if (prev != null)  maker = prev;
+        }
+        try {
+            return samType.cast((Object) maker.invokeExact(target));
+        } catch (Throwable ex) {
+            throw unexpectedException(ex);
+        }
+    }
+
+    private static final ConcurrentMap<List<Object>, MethodHandle> MAKERS
+        = new ConcurrentHashMap<>();
+
+    // maker type is (MethodHandle)Object
+    private static MethodHandle makeMaker(Class<?> samType, MethodType type) {
+        MethodHandle adapt = MH_asType;
+        Object[] wrapper = WRAPPERS.get(samType);
+        if (wrapper != null) {
+            MethodType exactType = (MethodType) wrapper[0];
+            MethodHandle ctor = (MethodHandle) wrapper[1];
+            checkArity(samType, exactType, type);
+            if (type.equals(exactType))  return ctor;
+            return filterArguments(ctor, 0, insertArguments(adapt, 1, exactType));
+        }
+        Method sam = singleAbstractMethod(samType);
+        MethodType exactType = methodType(sam.getReturnType(), sam.getParameterTypes());
+        checkArity(samType, exactType, type);
+        MethodHandle proxyCtor;
+        try {
+            Class<?> pclass = Proxy.getProxyClass(samType.getClassLoader(), samType);
+            proxyCtor = LOOKUP.unreflectConstructor(pclass.getConstructor(InvocationHandler.class));
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalArgumentException("cannot proxy "+samType.getName(), ex);
+        }
+        proxyCtor = proxyCtor.asType(methodType(Object.class, InvocationHandler.class));
+        MethodHandle spread = insertArguments(MH_spreadTarget, 1, exactType);
+        MethodHandle handler = insertArguments(MH_newProxyHandler, 1, samType, sam);
+        return filterArguments(filterArguments(proxyCtor, 0, handler), 0, spread);
+    }
+
+    private static void checkArity(Class<?> samType, MethodType exactType, MethodType type) {
+        if (exactType.parameterCount() != type.parameterCount())
+            throw new IllegalArgumentException("wrong arity for "+samType.getName()+": "+type);
+    }
+
+    private static Method singleAbstractMethod(Class<?> samType) {
+        if (!samType.isInterface())
+            throw new IllegalArgumentException("not an interface: "+samType.getName());
+        Method sam = null;
+        for (Method m : samType.getMethods()) {
+            if (!Modifier.isAbstract(m.getModifiers()) || isObjectMethod(m))  continue;
+            if (sam != null && !sameSignature(sam, m))
+                throw new IllegalArgumentException("not a single-method interface: "+samType.getName());
+            sam = m;
+        }
+        if (sam == null)
+            throw new IllegalArgumentException("no abstract method: "+samType.getName());
+        return sam;
+    }
+    private static boolean isObjectMethod(Method m) {
+        try {
+            Object.class.getMethod(m.getName(), m.getParameterTypes());
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+    private static boolean sameSignature(Method m1, Method m2) {
+        return (m1.getName().equals(m2.getName()) &&
+                Arrays.equals(m1.getParameterTypes(), m2.getParameterTypes()));
+    }
+
+    // (A...)R to (Object[])Object, boxing R
+    private static MethodHandle spreadTarget(MethodHandle target, MethodType exactType) {
+        MethodHandle mh = target.asType(exactType);
+        mh = mh.asType(mh.type().generic());
+        return mh.asSpreader(Object[].class, exactType.parameterCount());
+    }
+    private static InvocationHandler newProxyHandler(MethodHandle target, Class<?> samType, Method sam) {
+        return new MH_Proxy(target, samType, sam);
+    }
+
+    private static final Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodHandle MH_asType, MH_spreadTarget, MH_newProxyHandler;
+    private static final Map<Class<?>, Object[]> WRAPPERS = new HashMap<>();  // {exact type, ctor}
+    static {
         try {
-            return MethodHandles.asInstance(target, samType);
-        } catch (IllegalArgumentException ex) {
-            if (samType == Comparator.class && target.type() == MH_Comparator.MH_TYPE)
-                return samType.cast(new MH_Comparator(target));
-            if (samType == ClassValue.class && target.type() == MH_ClassValue.MH_TYPE)
-                return samType.cast(new MH_ClassValue(target));
-            throw ex;
+            MH_asType = LOOKUP
+                .findVirtual(MethodHandle.class, "asType",
+                             methodType(MethodHandle.class, MethodType.class));
+            MH_spreadTarget = LOOKUP
+                .findStatic(Workarounds.class, "spreadTarget",
+                            methodType(MethodHandle.class, MethodHandle.class, MethodType.class));
+            MH_newProxyHandler = LOOKUP
+                .findStatic(Workarounds.class, "newProxyHandler",
+                            methodType(InvocationHandler.class,
+                                       MethodHandle.class, Class.class, Method.class));
+            addWrapper(Runnable.class, MH_Runnable.class, MH_Runnable.MH_TYPE);
+            addWrapper(Callable.class, MH_Callable.class, MH_Callable.MH_TYPE);
+            addWrapper(Comparator.class, MH_Comparator.class, MH_Comparator.MH_TYPE);
+            addWrapper(ClassValue.class, MH_ClassValue.class, MH_ClassValue.MH_TYPE);
+            addWrapper(InvocationHandler.class, MH_InvocationHandler.class, MH_InvocationHandler.MH_TYPE);
+        } catch (ReflectiveOperationException ex) {
+            throw unexpectedException(ex);
+        }
+    }
+    private static void addWrapper(Class<?> samType, Class<?> wclass, MethodType exactType)
+            throws ReflectiveOperationException {
+        MethodHandle ctor = LOOKUP.findConstructor(wclass, methodType(void.class, MethodHandle.class));
+        WRAPPERS.put(samType, new Object[]{ exactType, ctor.asType(methodType(Object.class, MethodHandle.class)) });
+    }
+
+    private static class MH_Runnable implements Runnable, AsInstanceObject {
+        final MethodHandle target;
+        MH_Runnable(MethodHandle target) {
+            this.target = target;
+        }
+
+        static final MethodType MH_TYPE
+            = methodType(void.class);
+        public void run() {
+            try {
+                target.invokeExact();
+            } catch (Throwable ex) {
+                throw unexpectedException(ex);
+            }
         }
+
+        public MethodHandle getAsInstanceTarget() { return target; }
+        public Class<?> getAsInstanceType() { return Runnable.class; }
+    }
+
+    private static class MH_Callable implements Callable<Object>, AsInstanceObject {
+        final MethodHandle target;
+        MH_Callable(MethodHandle target) {
+            this.target = target;
+        }
+
+        static final MethodType MH_TYPE
+            = methodType(Object.class);
+        public Object call() throws Exception {
+            try {
+                return target.invokeExact();
+            } catch (Exception | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw unexpectedException(ex);
+            }
+        }
+
+        public MethodHandle getAsInstanceTarget() { return target; }
+        public Class<?> getAsInstanceType() { return Callable.class; }
     }
 
     private static class MH_Comparator implements Comparator<Object>, AsInstanceObject {
@@ -87,6 +245,49 @@ class Workarounds {
         public Class<?> getAsInstanceType() { return ClassValue.class; }
     }
 
+    private static class MH_InvocationHandler implements InvocationHandler, AsInstanceObject {
+        final MethodHandle target;
+        MH_InvocationHandler(MethodHandle target) {
+            this.target = target;
+        }
+
+        static final MethodType MH_TYPE
+            = methodType(Object.class, Object.class, Method.class, Object[].class);
+        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            return target.invokeExact(proxy, m, args);
+        }
+
+        public MethodHandle getAsInstanceTarget() { return target; }
+        public Class<?> getAsInstanceType() { return InvocationHandler.class; }
+    }
+
+    // handler for interfaces without a wrapper; target is spread to (Object[])Object
+    private static class MH_Proxy implements InvocationHandler, AsInstanceObject {
+        final MethodHandle target;
+        final Class<?> samType;
+        final Method sam;
+        MH_Proxy(MethodHandle target, Class<?> samType, Method sam) {
+            this.target = target;
+            this.samType = samType;
+            this.sam = sam;
+        }
+
+        private static final Object[] NO_ARGS = {};
+        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            if (m.getDeclaringClass() == Object.class) {
+                switch (m.getName()) {
+                case "equals":    return proxy == args[0];
+                case "hashCode":  return System.identityHashCode(proxy);
+                case "toString":  return samType.getName()+"@"+target;
+                }
+            }
+            return target.invokeExact(args == null ? NO_ARGS : args);
+        }
+
+        public MethodHandle getAsInstanceTarget() { return target; }
+        public Class<?> getAsInstanceType() { return samType; }
+    }
+
     private static InternalError unexpectedException(Throwable ex) {
         if (ex instanceof RuntimeException)  throw (RuntimeException) ex;
         if (ex instanceof Error)             throw (Error) ex;